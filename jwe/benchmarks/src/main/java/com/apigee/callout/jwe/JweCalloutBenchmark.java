@@ -0,0 +1,83 @@
+package com.apigee.callout.jwe;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * JweCalloutBenchmark
+ *
+ * Measures JweEncryptorCallout and JweDecryptorCallout end to end,
+ * through execute(), for each content encryption algorithm and for
+ * plaintext from 100 bytes to 1 MB. Each operation includes the PBES2 key
+ * derivation, as it does in the callout; JweStagesBenchmark measures that
+ * separately.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JweCalloutBenchmark {
+
+    @Param({"A128CBC-HS256", "A256GCM"})
+    public String algorithm;
+
+    @Param({"100", "10000", "1000000"})
+    public int payloadSize;
+
+    private JweEncryptorCallout encryptor;
+    private JweDecryptorCallout decryptor;
+    private MessageContext msgCtxt;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map<String,String> encryptorProperties = new HashMap<String,String>();
+        encryptorProperties.put("algorithm", algorithm);
+        encryptorProperties.put("secret-key", JweStagesBenchmark.SECRET_KEY);
+        encryptorProperties.put("plaintext", Payloads.ofSize(payloadSize));
+        Map<String,String> decryptorProperties = new HashMap<String,String>();
+        decryptorProperties.put("algorithm", algorithm);
+        decryptorProperties.put("secret-key", JweStagesBenchmark.SECRET_KEY);
+        decryptorProperties.put("jwe", "{benchmark.jwe}");
+
+        encryptor = new JweEncryptorCallout(encryptorProperties);
+        decryptor = new JweDecryptorCallout(decryptorProperties);
+        msgCtxt = InMemoryMessageContext.create();
+        if (encryptor.execute(msgCtxt, null) != ExecutionResult.SUCCESS) {
+            throw new IllegalStateException("setup: encrypt: " + msgCtxt.getVariable("jwe_error"));
+        }
+        msgCtxt.setVariable("benchmark.jwe", msgCtxt.getVariable("jwe_jwe"));
+        if (decryptor.execute(msgCtxt, null) != ExecutionResult.SUCCESS) {
+            throw new IllegalStateException("setup: decrypt: " + msgCtxt.getVariable("jwe_error"));
+        }
+    }
+
+    @Benchmark
+    public ExecutionResult encrypt() {
+        return encryptor.execute(msgCtxt, null);
+    }
+
+    @Benchmark
+    public ExecutionResult decrypt() {
+        return decryptor.execute(msgCtxt, null);
+    }
+}
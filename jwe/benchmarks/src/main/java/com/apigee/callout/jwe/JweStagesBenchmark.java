@@ -0,0 +1,139 @@
+package com.apigee.callout.jwe;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+
+import org.jose4j.base64url.Base64Url;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
+import org.jose4j.jwe.Pbes2HmacShaWithAesKeyWrapAlgorithm;
+import org.jose4j.jwe.kdf.PasswordBasedKeyDerivationFunction2;
+import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwx.CompactSerializer;
+import org.jose4j.keys.AesKey;
+import org.jose4j.lang.JoseException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * JweStagesBenchmark
+ *
+ * Measures, one at a time, the stages that JweEncryptorCallout and
+ * JweDecryptorCallout go through on every request:
+ *
+ *   keyParsing        - the secret-key property into a JWK, and from that a Key
+ *   keyDerivation     - PBKDF2 over that key, with the salt and iteration
+ *                       count the PBES2-HS256+A128KW algorithm uses by default
+ *   contentEncryption - the plaintext into a JWE with alg=dir, so there is
+ *                       no key management; this includes serialization
+ *   contentDecryption - the reverse
+ *   serialization     - base64url encoding and joining the five parts
+ *
+ * The key stages do not depend on the payload size, so they are measured
+ * for each size only as a point of comparison.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JweStagesBenchmark {
+    static final String SECRET_KEY = "ABCDEFGH12345678_ABCDEFGH12345678";
+    private static final String PBES2_ALGORITHM = KeyManagementAlgorithmIdentifiers.PBES2_HS256_A128KW;
+
+    @Param({"A128CBC-HS256", "A256GCM"})
+    public String algorithm;
+
+    @Param({"100", "10000", "1000000"})
+    public int payloadSize;
+
+    private String plaintext;
+    private Key contentEncryptionKey;
+    private byte[] pbes2SaltInput;
+    private int pbes2IterationCount;
+    private String encryptedHeader;
+    private byte[] iv;
+    private byte[] ciphertext;
+    private byte[] authenticationTag;
+    private String directJwe;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        plaintext = Payloads.ofSize(payloadSize);
+        // both A256GCM and A128CBC-HS256 take a 256-bit key
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        contentEncryptionKey = new AesKey(keyBytes);
+
+        // the PBES2 salt input is the alg, a zero byte, and the salt (RFC 7518, 4.8.1.1)
+        byte[] alg = PBES2_ALGORITHM.getBytes(StandardCharsets.UTF_8);
+        Pbes2HmacShaWithAesKeyWrapAlgorithm pbes2 = new Pbes2HmacShaWithAesKeyWrapAlgorithm.HmacSha256Aes128();
+        byte[] salt = new byte[pbes2.getDefaultSaltByteLength()];
+        new SecureRandom().nextBytes(salt);
+        pbes2SaltInput = new byte[alg.length + 1 + salt.length];
+        System.arraycopy(alg, 0, pbes2SaltInput, 0, alg.length);
+        System.arraycopy(salt, 0, pbes2SaltInput, alg.length + 1, salt.length);
+        pbes2IterationCount = (int) pbes2.getDefaultIterationCount();
+
+        directJwe = contentEncryption();
+        String[] parts = CompactSerializer.deserialize(directJwe);
+        encryptedHeader = parts[0];
+        iv = Base64Url.decode(parts[2]);
+        ciphertext = Base64Url.decode(parts[3]);
+        authenticationTag = Base64Url.decode(parts[4]);
+    }
+
+    @Benchmark
+    public Key keyParsing() throws Exception {
+        String b64Key = Base64.encodeBase64String(SECRET_KEY.getBytes("UTF-8"));
+        String jwkJson = "{\"kty\":\"oct\",\"k\":\""+ b64Key + "\"}";
+        return JsonWebKey.Factory.newJwk(jwkJson).getKey();
+    }
+
+    @Benchmark
+    public byte[] keyDerivation() throws Exception {
+        PasswordBasedKeyDerivationFunction2 pbkdf2 = new PasswordBasedKeyDerivationFunction2("HmacSHA256");
+        return pbkdf2.derive(SECRET_KEY.getBytes(StandardCharsets.UTF_8), pbes2SaltInput, pbes2IterationCount, 16);
+    }
+
+    @Benchmark
+    public String contentEncryption() throws JoseException {
+        JsonWebEncryption jwe = new JsonWebEncryption();
+        jwe.setPlaintext(plaintext);
+        jwe.setEncryptionMethodHeaderParameter(algorithm);
+        jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.DIRECT);
+        jwe.setKey(contentEncryptionKey);
+        return jwe.getCompactSerialization();
+    }
+
+    @Benchmark
+    public String contentDecryption() throws JoseException {
+        JsonWebEncryption jwe = new JsonWebEncryption();
+        jwe.setCompactSerialization(directJwe);
+        jwe.setKey(contentEncryptionKey);
+        return jwe.getPlaintextString();
+    }
+
+    @Benchmark
+    public String serialization() {
+        return CompactSerializer.serialize(encryptedHeader, "", Base64Url.encode(iv),
+                                           Base64Url.encode(ciphertext), Base64Url.encode(authenticationTag));
+    }
+}
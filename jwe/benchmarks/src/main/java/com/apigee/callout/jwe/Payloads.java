@@ -0,0 +1,21 @@
+package com.apigee.callout.jwe;
+
+/*
+ * Payloads
+ *
+ * Plaintext of a given size for the benchmarks. ASCII, so the size in
+ * characters is also the size in bytes.
+ *
+ */
+final class Payloads {
+    private Payloads() {}
+
+    static String ofSize(int size) {
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size) {
+            sb.append("The quick brown fox jumps over the lazy dog. ");
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+}
@@ -16,17 +16,23 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwk.PublicJsonWebKey;
 import org.jose4j.jwe.JsonWebEncryption;
 import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
 import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
+import org.jose4j.jwx.HeaderParameterNames;
+import org.jose4j.keys.AesKey;
+import org.jose4j.lang.JoseException;
 
 import org.apache.commons.ssl.PKCS8Key;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.text.StrSubstitutor;
 
+import java.security.Key;
 import java.security.PrivateKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.KeyFactory;
 import java.nio.charset.Charset;
@@ -43,6 +49,12 @@ public class JweDecryptorCallout implements Execution {
     private final static String _varPrefix = "jwe_";
 
     private Map<String,String> properties; // read-only
+    private final Diagnostics diagnostics;
+
+    static {
+        // keeps the derived key-encryption keys, for JWE that share a salt
+        Pbes2KeyCache.register();
+    }
 
     public JweDecryptorCallout (Map properties) {
         // convert the untyped Map to a generic map
@@ -56,6 +68,7 @@ public class JweDecryptorCallout implements Execution {
             }
         }
         this.properties = m;
+        this.diagnostics = Diagnostics.from(m);
     }
 
     private static InputStream getResourceAsStream(String resourceName)
@@ -114,6 +127,93 @@ public class JweDecryptorCallout implements Execution {
         return algorithm;
     }
 
+    // The key management algorithm the JWE must use. See JweEncryptorCallout.
+    private String getKeyManagementAlgorithm(MessageContext msgCtxt) throws Exception {
+        String algorithm = (String) this.properties.get("key-management-algorithm");
+        if (algorithm == null || algorithm.trim().equals("")) {
+            return KeyManagementAlgorithmIdentifiers.PBES2_HS256_A128KW;
+        }
+        algorithm = resolvePropertyValue(algorithm.trim(), msgCtxt);
+        if (algorithm == null || algorithm.equals("")) {
+            throw new IllegalStateException("key-management-algorithm resolves to nothing.");
+        }
+        JweUtils.validateKeyManagementAlgorithm(algorithm);
+        return algorithm;
+    }
+
+    // The most PBKDF2 iterations a JWE may ask for, in its p2c header.
+    private long getPbes2MaxIterations(MessageContext msgCtxt) {
+        String value = (String) this.properties.get("pbes2-max-iterations");
+        if (value == null || value.trim().equals("")) {
+            return Pbes2KeyCache.DEFAULT_MAX_ITERATIONS;
+        }
+        value = resolvePropertyValue(value.trim(), msgCtxt);
+        long maxIterations;
+        try {
+            maxIterations = Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException("pbes2-max-iterations is not a number.");
+        }
+        if (maxIterations < Pbes2KeyCache.MIN_ITERATIONS || maxIterations > Pbes2KeyCache.MAX_ITERATIONS) {
+            throw new IllegalStateException(String.format("pbes2-max-iterations must be from %d to %d",
+                                                          Pbes2KeyCache.MIN_ITERATIONS,
+                                                          Pbes2KeyCache.MAX_ITERATIONS));
+        }
+        return maxIterations;
+    }
+
+    private String getJwk(MessageContext msgCtxt) {
+        String jwk = (String) this.properties.get("jwk");
+        if (jwk == null || jwk.equals("")) {
+            return null;
+        }
+        // a JWK given inline is a JSON object, not a variable reference
+        if (!JweUtils.isInlineJson(jwk)) {
+            jwk = resolvePropertyValue(jwk, msgCtxt);
+        }
+        if (jwk == null || jwk.equals("")) {
+            throw new IllegalStateException("jwk resolves to nothing.");
+        }
+        return jwk;
+    }
+
+    // the key to decrypt with: from the jwk property if present, else the
+    // private-key (for RSA and ECDH) or the secret-key (for the others)
+    private Key getDecryptionKey(String keyManagementAlgorithm, MessageContext msgCtxt)
+        throws Exception {
+        final String jwkJson = getJwk(msgCtxt);
+        if (jwkJson != null) {
+            // the private half, unlike the encryptor, so a different kind of key
+            return KeyCache.get("jwk-private", jwkJson, new KeyCache.Loader() {
+                    public Key load() throws Exception {
+                        JsonWebKey jwk = JsonWebKey.Factory.newJwk(jwkJson);
+                        if (jwk instanceof PublicJsonWebKey) {
+                            PrivateKey privateKey = ((PublicJsonWebKey) jwk).getPrivateKey();
+                            if (privateKey == null) {
+                                throw new IllegalStateException("the jwk does not include the private key.");
+                            }
+                            return privateKey;
+                        }
+                        return jwk.getKey();
+                    }
+                });
+        }
+        if (JweUtils.isAsymmetricKeyManagementAlgorithm(keyManagementAlgorithm)) {
+            Key privateKey = getPrivateKey(msgCtxt);
+            if (privateKey == null) {
+                throw new IllegalStateException("the private-key is not an RSA or EC key.");
+            }
+            return privateKey;
+        }
+        final String secretKey = getSecretKey(msgCtxt);
+        return KeyCache.get("secret-key", secretKey, new KeyCache.Loader() {
+                public Key load() throws Exception {
+                    return new AesKey(secretKey.getBytes("UTF-8"));
+                }
+            });
+    }
+
     private String[] getAudience(MessageContext msgCtxt) throws Exception {
         String audience = (String) this.properties.get("audience");
         if (audience == null || audience.equals("")) {
@@ -142,15 +242,11 @@ public class JweDecryptorCallout implements Execution {
     }
 
 
-    private PrivateKey getPrivateKey(MessageContext msgCtxt)
-        throws IOException,
-               GeneralSecurityException,
-               NoSuchAlgorithmException,
-               InvalidKeySpecException
-    {
-        byte[] keyBytes = null;
+    private Key getPrivateKey(MessageContext msgCtxt) throws Exception {
         String privateKey = (String) this.properties.get("private-key");
-        String passwd = getPrivateKeyPassword(msgCtxt);
+        final String passwd = getPrivateKeyPassword(msgCtxt);
+        // the password is part of what the key is cached under, so that a wrong one still fails
+        String cacheMaterial = (passwd == null) ? "" : passwd;
         if (privateKey==null) {
             String pemfile = (String) this.properties.get("pemfile");
             if (pemfile == null || pemfile.equals("")) {
@@ -160,31 +256,45 @@ public class JweDecryptorCallout implements Execution {
             if (pemfile == null || pemfile.equals("")) {
                 throw new IllegalStateException("pemfile resolves to nothing; invalid when algorithm is RS*");
             }
-
-            InputStream in = getResourceAsStream(pemfile);
-
-            keyBytes = new byte[in.available()];
-            in.read(keyBytes);
-            in.close();
+            // the resource in the jar does not change, so skip reading it too
+            final String resourceName = pemfile;
+            return KeyCache.get("pemfile", resourceName + "\0" + cacheMaterial, new KeyCache.Loader() {
+                    public Key load() throws Exception {
+                        InputStream in = getResourceAsStream(resourceName);
+                        byte[] keyBytes = new byte[in.available()];
+                        in.read(keyBytes);
+                        in.close();
+                        return parsePrivateKey(keyBytes, passwd);
+                    }
+                });
         }
-        else {
-            if (privateKey.equals("")) {
-                throw new IllegalStateException("private-key must be non-empty");
-            }
-            privateKey = resolvePropertyValue(privateKey, msgCtxt);
-            if (privateKey==null || privateKey.equals("")) {
-                throw new IllegalStateException("private-key variable resolves to empty; invalid when algorithm is RS*");
-            }
-            privateKey = privateKey.trim();
-            // clear any leading whitespace on each line
-            privateKey = privateKey.replaceAll("([\\r|\\n] +)","\n");
-            keyBytes = privateKey.getBytes(Charset.forName("UTF-8"));
+        if (privateKey.equals("")) {
+            throw new IllegalStateException("private-key must be non-empty");
         }
+        privateKey = resolvePropertyValue(privateKey, msgCtxt);
+        if (privateKey==null || privateKey.equals("")) {
+            throw new IllegalStateException("private-key variable resolves to empty; invalid when algorithm is RS*");
+        }
+        privateKey = privateKey.trim();
+        // clear any leading whitespace on each line
+        privateKey = privateKey.replaceAll("([\\r|\\n] +)","\n");
+        final byte[] keyBytes = privateKey.getBytes(Charset.forName("UTF-8"));
+        return KeyCache.get("private-key", privateKey + "\0" + cacheMaterial, new KeyCache.Loader() {
+                public Key load() throws Exception {
+                    return parsePrivateKey(keyBytes, passwd);
+                }
+            });
+    }
 
+    private static PrivateKey parsePrivateKey(byte[] keyBytes, String passwd)
+        throws GeneralSecurityException,
+               NoSuchAlgorithmException,
+               InvalidKeySpecException
+    {
         // If the provided data is encrypted, we need a password to decrypt
         // it. If the InputStream is not encrypted, then the password is ignored
         // (can be null).  The InputStream can be DER (raw ASN.1) or PEM (base64).
-        PKCS8Key pkcs8 = new PKCS8Key( keyBytes, passwd.toCharArray() );
+        PKCS8Key pkcs8 = new PKCS8Key( keyBytes, (passwd == null) ? null : passwd.toCharArray() );
 
         // If an unencrypted PKCS8 key was provided, then getDecryptedBytes()
         // actually returns exactly what was originally passed in (with no
@@ -201,6 +311,15 @@ public class JweDecryptorCallout implements Execution {
         else if ( pkcs8.isRSA() ) {
             pk = KeyFactory.getInstance( "RSA" ).generatePrivate( spec );
         }
+        else {
+            // PKCS8Key recognizes only RSA and DSA keys
+            try {
+                pk = KeyFactory.getInstance( "EC" ).generatePrivate( spec );
+            }
+            catch (InvalidKeySpecException e) {
+                // not an EC key either
+            }
+        }
         return pk;
     }
 
@@ -223,6 +342,18 @@ public class JweDecryptorCallout implements Execution {
         return spec;
     }
 
+    private static void validateEphemeralPublicKey(JsonWebEncryption jwe, Key key)
+        throws JoseException {
+        PublicJsonWebKey epk = jwe.getHeaders().getPublicJwkHeaderValue(HeaderParameterNames.EPHEMERAL_PUBLIC_KEY, null);
+        if (epk == null || !(epk.getPublicKey() instanceof ECPublicKey)) {
+            throw new IllegalStateException("the JWE has no EC epk.");
+        }
+        if (!(key instanceof ECPrivateKey)) {
+            throw new IllegalStateException("the private-key is not an EC key.");
+        }
+        JweUtils.validateEphemeralPublicKey((ECPublicKey) epk.getPublicKey(), (ECPrivateKey) key);
+    }
+
     private static final String varName(String s) { return _varPrefix + s; }
 
     public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt)
@@ -230,16 +361,31 @@ public class JweDecryptorCallout implements Execution {
         try {
             msgCtxt.removeVariable(varName("error"));
             String jweText = getJweCompactSerialization(msgCtxt);
-            String secretKey = getSecretKey(msgCtxt);
-            String b64Key = Base64.encodeBase64String(secretKey.getBytes("UTF-8"));
-
-            String jwkJson = "{\"kty\":\"oct\",\"k\":\""+ b64Key + "\"}";
-            JsonWebKey jwk = JsonWebKey.Factory.newJwk(jwkJson);
+            String keyManagementAlgorithm = getKeyManagementAlgorithm(msgCtxt);
+            Key key = getDecryptionKey(keyManagementAlgorithm, msgCtxt);
             JsonWebEncryption jwe = new JsonWebEncryption();
 
             // Set the compact serialization on new Json Web Encryption object
             jwe.setCompactSerialization(jweText);
-            jwe.setKey(jwk.getKey());
+
+            // Check the key management algorithm before doing anything with
+            // the key, so that a JWE cannot choose how its key is used.
+            String foundKeyManagementAlgorithm = jwe.getAlgorithmHeaderValue();
+            if (!keyManagementAlgorithm.equals(foundKeyManagementAlgorithm)) {
+                msgCtxt.setVariable(varName("error"),
+                                    String.format("Key management algorithm mismatch: found [%s], expected [%s]",
+                                                  foundKeyManagementAlgorithm, keyManagementAlgorithm));
+                return ExecutionResult.ABORT;
+            }
+            if (keyManagementAlgorithm.equals(KeyManagementAlgorithmIdentifiers.PBES2_HS256_A128KW)) {
+                // before any key is derived from it
+                Pbes2KeyCache.checkIterationCount(jwe.getHeaders(), getPbes2MaxIterations(msgCtxt));
+            }
+            else if (keyManagementAlgorithm.startsWith("ECDH-ES")) {
+                // before any key is agreed with it
+                validateEphemeralPublicKey(jwe, key);
+            }
+            jwe.setKey(key);
 
             // Get the message that was encrypted in the JWE. This step
             // performs the actual decryption steps.
@@ -261,7 +407,9 @@ public class JweDecryptorCallout implements Execution {
         }
         catch (Exception e) {
             msgCtxt.setVariable(varName("error"), "Exception " + e.toString());
-            msgCtxt.setVariable(varName("stacktrace"), ExceptionUtils.getStackTrace(e));
+            if (diagnostics.wantsError()) {
+                diagnostics.error(msgCtxt, varName("stacktrace"), e);
+            }
             return ExecutionResult.ABORT;
         }
         return ExecutionResult.SUCCESS;
@@ -19,14 +19,17 @@ import org.jose4j.jwk.JsonWebKey;
 import org.jose4j.jwe.JsonWebEncryption;
 import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
 import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
+import org.jose4j.keys.AesKey;
 
 import org.apache.commons.ssl.PKCS8Key;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.text.StrSubstitutor;
 
+import java.security.Key;
 import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.KeyFactory;
 import java.nio.charset.Charset;
@@ -42,6 +45,11 @@ public class JweEncryptorCallout implements Execution {
     private final static String _varPrefix = "jwe_";
 
     private Map<String,String> properties; // read-only
+    private final Diagnostics diagnostics;
+
+    static {
+        Pbes2KeyCache.register();
+    }
 
     public JweEncryptorCallout (Map properties) {
         // convert the untyped Map to a generic map
@@ -55,6 +63,7 @@ public class JweEncryptorCallout implements Execution {
             }
         }
         this.properties = m;
+        this.diagnostics = Diagnostics.from(m);
     }
 
     private static InputStream getResourceAsStream(String resourceName)
@@ -114,6 +123,116 @@ public class JweEncryptorCallout implements Execution {
     }
 
 
+    // How long, in seconds, to keep using one PBES2 salt for a given
+    // secret. Within that time every JWE shares a key-encryption key, so
+    // the expensive key derivation runs once rather than for every JWE.
+    // Zero, the default, means a new salt for every JWE.
+    private long getSaltLifetime(MessageContext msgCtxt) {
+        String lifetime = (String) this.properties.get("pbes2-salt-lifetime");
+        if (lifetime == null || lifetime.equals("")) {
+            return 0L;
+        }
+        lifetime = resolvePropertyValue(lifetime, msgCtxt);
+        if (lifetime == null || lifetime.trim().equals("")) {
+            return 0L;
+        }
+        try {
+            long seconds = Long.parseLong(lifetime.trim(), 10);
+            if (seconds < 0) {
+                throw new IllegalStateException("pbes2-salt-lifetime must not be negative.");
+            }
+            return seconds;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException("pbes2-salt-lifetime is not a number: '" + lifetime + "'");
+        }
+    }
+
+    // The key management algorithm, which governs how the content
+    // encryption key is protected. PBES2-HS256+A128KW, the default, derives
+    // a key from the secret-key; the others take a key as it is.
+    private String getKeyManagementAlgorithm(MessageContext msgCtxt) throws Exception {
+        String algorithm = (String) this.properties.get("key-management-algorithm");
+        if (algorithm == null || algorithm.trim().equals("")) {
+            return KeyManagementAlgorithmIdentifiers.PBES2_HS256_A128KW;
+        }
+        algorithm = resolvePropertyValue(algorithm.trim(), msgCtxt);
+        if (algorithm == null || algorithm.equals("")) {
+            throw new IllegalStateException("key-management-algorithm resolves to nothing.");
+        }
+        JweUtils.validateKeyManagementAlgorithm(algorithm);
+        return algorithm;
+    }
+
+    private String getJwk(MessageContext msgCtxt) {
+        String jwk = (String) this.properties.get("jwk");
+        if (jwk == null || jwk.equals("")) {
+            return null;
+        }
+        // a JWK given inline is a JSON object, not a variable reference
+        if (!JweUtils.isInlineJson(jwk)) {
+            jwk = resolvePropertyValue(jwk, msgCtxt);
+        }
+        if (jwk == null || jwk.equals("")) {
+            throw new IllegalStateException("jwk resolves to nothing.");
+        }
+        return jwk;
+    }
+
+    // the key to encrypt with: from the jwk property if present, else the
+    // public-key (for RSA and ECDH) or the secret-key (for the others)
+    private Key getEncryptionKey(String keyManagementAlgorithm, MessageContext msgCtxt)
+        throws Exception {
+        final String jwk = getJwk(msgCtxt);
+        if (jwk != null) {
+            return KeyCache.get("jwk", jwk, new KeyCache.Loader() {
+                    public Key load() throws Exception {
+                        // for an RSA or EC key, this is the public key
+                        return JsonWebKey.Factory.newJwk(jwk).getKey();
+                    }
+                });
+        }
+        if (JweUtils.isAsymmetricKeyManagementAlgorithm(keyManagementAlgorithm)) {
+            return getPublicKey(keyManagementAlgorithm, msgCtxt);
+        }
+        final String secretKey = getSecretKey(msgCtxt);
+        return KeyCache.get("secret-key", secretKey, new KeyCache.Loader() {
+                public Key load() throws Exception {
+                    return new AesKey(secretKey.getBytes("UTF-8"));
+                }
+            });
+    }
+
+    private Key getPublicKey(String keyManagementAlgorithm, MessageContext msgCtxt)
+        throws Exception {
+        String publicKey = (String) this.properties.get("public-key");
+        if (publicKey == null || publicKey.equals("")) {
+            throw new IllegalStateException("must specify jwk or public-key when key-management-algorithm is " + keyManagementAlgorithm);
+        }
+        publicKey = resolvePropertyValue(publicKey, msgCtxt);
+        if (publicKey == null || publicKey.trim().equals("")) {
+            throw new IllegalStateException("public-key variable resolves to empty.");
+        }
+        final String pem = publicKey.trim();
+        final String keyAlgorithm = JweUtils.getKeyFactoryAlgorithm(keyManagementAlgorithm);
+        return KeyCache.get("public-key:" + keyAlgorithm, pem, new KeyCache.Loader() {
+                public Key load() throws Exception {
+                    return parsePublicKey(pem, keyAlgorithm);
+                }
+            });
+    }
+
+    private static PublicKey parsePublicKey(String pem, String keyAlgorithm)
+        throws GeneralSecurityException {
+        if (!pem.startsWith("-----BEGIN PUBLIC KEY-----") ||
+            !pem.endsWith("-----END PUBLIC KEY-----")) {
+            throw new InvalidKeySpecException("invalid key format");
+        }
+        String encoded = pem.substring(26, pem.length() - 24);
+        X509EncodedKeySpec spec = new X509EncodedKeySpec(Base64.decodeBase64(encoded));
+        return KeyFactory.getInstance(keyAlgorithm).generatePublic(spec);
+    }
+
     private String getPrivateKeyPassword(MessageContext msgCtxt) {
         String password = (String) this.properties.get("private-key-password");
         if (password == null || password.equals("")) {
@@ -213,26 +332,30 @@ public class JweEncryptorCallout implements Execution {
         try {
             msgCtxt.removeVariable(varName("error"));
             String plaintext = getPlainText(msgCtxt);
-            String secretKey = getSecretKey(msgCtxt);
+            String keyManagementAlgorithm = getKeyManagementAlgorithm(msgCtxt);
+            Key key = getEncryptionKey(keyManagementAlgorithm, msgCtxt);
             String algorithm = getAlgorithm(msgCtxt);
-            String b64Key = Base64.encodeBase64String(secretKey.getBytes("UTF-8"));
-
-            String jwkJson = "{\"kty\":\"oct\",\"k\":\""+ b64Key + "\"}";
-            JsonWebKey jwk = JsonWebKey.Factory.newJwk(jwkJson);
 
             JsonWebEncryption jwe = new JsonWebEncryption();
             jwe.setPlaintext(plaintext);
             jwe.setEncryptionMethodHeaderParameter(algorithm);
-            jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.PBES2_HS256_A128KW);
-            jwe.setKey(jwk.getKey());
+            jwe.setAlgorithmHeaderValue(keyManagementAlgorithm);
+            jwe.setKey(key);
+            if (keyManagementAlgorithm.equals(KeyManagementAlgorithmIdentifiers.PBES2_HS256_A128KW)) {
+                long saltLifetime = getSaltLifetime(msgCtxt);
+                if (saltLifetime > 0) {
+                    Pbes2KeyCache.reuseSalt(jwe, key, saltLifetime * 1000L);
+                }
+            }
             // do the encryption
             String compactSerialization = jwe.getCompactSerialization();
             msgCtxt.setVariable(varName("jwe"), compactSerialization);
         }
         catch (Exception e) {
-            //e.printStackTrace();
             msgCtxt.setVariable(varName("error"), "Exception " + e.toString());
-            msgCtxt.setVariable(varName("stacktrace"), ExceptionUtils.getStackTrace(e));
+            if (diagnostics.wantsError()) {
+                diagnostics.error(msgCtxt, varName("stacktrace"), e);
+            }
             return ExecutionResult.ABORT;
         }
         return ExecutionResult.SUCCESS;
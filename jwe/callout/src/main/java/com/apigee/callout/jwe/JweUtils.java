@@ -1,6 +1,18 @@
 package com.apigee.callout.jwe;
 
+import java.math.BigInteger;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
 import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
+import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
 
 public final class JweUtils {
 
@@ -8,6 +20,27 @@ public final class JweUtils {
     //     throw new UnsupportedOperationException();
     // }
 
+    private static final Set<String> keyManagementAlgorithms =
+        new HashSet<String>(Arrays.asList(KeyManagementAlgorithmIdentifiers.PBES2_HS256_A128KW,
+                                          KeyManagementAlgorithmIdentifiers.DIRECT,
+                                          KeyManagementAlgorithmIdentifiers.A128KW,
+                                          KeyManagementAlgorithmIdentifiers.A192KW,
+                                          KeyManagementAlgorithmIdentifiers.A256KW,
+                                          KeyManagementAlgorithmIdentifiers.RSA_OAEP_256,
+                                          KeyManagementAlgorithmIdentifiers.ECDH_ES,
+                                          KeyManagementAlgorithmIdentifiers.ECDH_ES_A128KW,
+                                          KeyManagementAlgorithmIdentifiers.ECDH_ES_A192KW,
+                                          KeyManagementAlgorithmIdentifiers.ECDH_ES_A256KW));
+
+    // a brace then a quote, with any whitespace around or between them
+    private static final Pattern inlineJsonObject = Pattern.compile("\\A\\s*\\{\\s*\"");
+
+    // A property holding a JSON object itself, rather than a variable
+    // reference like {private.jwk}, whose braces hold a name and no quote.
+    public static boolean isInlineJson(String value) {
+        return inlineJsonObject.matcher(value).lookingAt();
+    }
+
     public static void validateJweAlgorithm(String alg) throws Exception {
         if (!alg.equals(ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256) &&
             !alg.equals(ContentEncryptionAlgorithmIdentifiers.AES_192_CBC_HMAC_SHA_384) &&
@@ -20,4 +53,50 @@ public final class JweUtils {
             throw new IllegalStateException("unsupported algorithm: '" + alg + "'");
         }
     }
+
+    public static void validateKeyManagementAlgorithm(String alg) throws Exception {
+        if (!keyManagementAlgorithms.contains(alg)) {
+            throw new IllegalStateException("unsupported key-management-algorithm: '" + alg + "'");
+        }
+    }
+
+    // RSA and ECDH encrypt to a public key, and decrypt with a private key.
+    // The rest use one symmetric key for both.
+    public static boolean isAsymmetricKeyManagementAlgorithm(String alg) {
+        return alg.startsWith("RSA") || alg.startsWith("ECDH-ES");
+    }
+
+    // the Java KeyFactory algorithm for the keys of an asymmetric key management algorithm
+    public static String getKeyFactoryAlgorithm(String alg) {
+        return alg.startsWith("RSA") ? "RSA" : "EC";
+    }
+
+    // An ephemeral public key off the curve of our private key lets the
+    // sender learn the private key a few bits at a time (the invalid curve
+    // attack), so check the epk before agreeing on any key with it.
+    public static void validateEphemeralPublicKey(ECPublicKey epk, ECPrivateKey key) {
+        EllipticCurve curve = key.getParams().getCurve();
+        if (!curve.equals(epk.getParams().getCurve()) || !(curve.getField() instanceof ECFieldFp)) {
+            throw new IllegalStateException("epk is not on the curve of the private key.");
+        }
+        BigInteger p = ((ECFieldFp) curve.getField()).getP();
+        ECPoint w = epk.getW();
+        if (w.equals(ECPoint.POINT_INFINITY)) {
+            throw new IllegalStateException("epk is not on the curve of the private key.");
+        }
+        BigInteger x = w.getAffineX();
+        BigInteger y = w.getAffineY();
+        if (x.signum() < 0 || x.compareTo(p) >= 0 || y.signum() < 0 || y.compareTo(p) >= 0) {
+            throw new IllegalStateException("epk is not on the curve of the private key.");
+        }
+        // y^2 = x^3 + ax + b (mod p)
+        BigInteger left = y.modPow(BigInteger.valueOf(2), p);
+        BigInteger right = x.modPow(BigInteger.valueOf(3), p)
+            .add(curve.getA().multiply(x))
+            .add(curve.getB())
+            .mod(p);
+        if (!left.equals(right)) {
+            throw new IllegalStateException("epk is not on the curve of the private key.");
+        }
+    }
 }
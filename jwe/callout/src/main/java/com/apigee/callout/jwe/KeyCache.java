@@ -0,0 +1,79 @@
+package com.apigee.callout.jwe;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+
+/*
+ * KeyCache
+ *
+ * The Key objects the JWE callouts build from their key properties: a
+ * secret-key, a JWK, or a PEM-encoded public or private key. Turning those
+ * strings into a Key means parsing JSON, PEM or ASN.1 on every request,
+ * although the same few keys arrive over and over. So the keys are kept
+ * here, shared by all the policy instances in the JVM, in a bounded LRU
+ * map.
+ *
+ * The map is keyed on a SHA-256 digest of the kind of key and the string
+ * it came from, after variable resolution, so the cache works the same
+ * whether the property holds the key or a reference to a variable that
+ * does, and no secret is held as a map key.
+ *
+ */
+final class KeyCache {
+    private static final int MAX_KEYS = 256;
+
+    private static final Map<String,Key> keys = new LinkedHashMap<String,Key>(32, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,Key> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+
+    interface Loader {
+        // may return null, which is not cached
+        Key load() throws Exception;
+    }
+
+    private KeyCache() {}
+
+    static Key get(String kind, String material, Loader loader) throws Exception {
+        String digest = digest(kind, material);
+        Key key;
+        synchronized (keys) {
+            key = keys.get(digest);
+        }
+        if (key == null) {
+            // load outside the lock; two threads may race to load the same key, harmlessly
+            key = loader.load();
+            if (key != null) {
+                synchronized (keys) {
+                    keys.put(digest, key);
+                }
+            }
+        }
+        return key;
+    }
+
+    static int size() {
+        synchronized (keys) {
+            return keys.size();
+        }
+    }
+
+    private static String digest(String kind, String material) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(kind.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            return Hex.encodeHexString(md.digest(material.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
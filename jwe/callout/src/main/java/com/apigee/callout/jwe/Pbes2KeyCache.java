@@ -0,0 +1,273 @@
+package com.apigee.callout.jwe;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.jose4j.base64url.Base64Url;
+import org.jose4j.jca.ProviderContext;
+import org.jose4j.jwa.AlgorithmFactoryFactory;
+import org.jose4j.jwe.ContentEncryptionKeyDescriptor;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
+import org.jose4j.jwe.Pbes2HmacShaWithAesKeyWrapAlgorithm;
+import org.jose4j.jwe.kdf.PasswordBasedKeyDerivationFunction2;
+import org.jose4j.jwx.Headers;
+import org.jose4j.keys.AesKey;
+import org.jose4j.lang.JoseException;
+
+/*
+ * Pbes2KeyCache
+ *
+ * PBES2-HS256+A128KW runs thousands of PBKDF2 iterations over the secret
+ * to derive the key-encryption key (KEK), and that derivation dominates
+ * the cost of both encrypting and decrypting. The KEK depends only on
+ * the secret, the salt and the iteration count, so this class keeps the
+ * KEKs it has derived in a bounded LRU map, keyed on a digest of the
+ * secret (never the secret itself), the salt input and the count.
+ *
+ * A JWE normally carries a fresh random salt, so the cache helps
+ * decryption of the JWE that a sender produces with a reused salt, and
+ * repeated decryption of the same JWE. The encryptor can opt in to
+ * reusing one salt per secret for a limited time, via reuseSalt(); every
+ * JWE it produces in that window then shares a KEK, and the derivation
+ * runs once per window rather than once per message.
+ *
+ * The salt and the count come from the JWE header, which the sender
+ * controls. So a count outside [MIN_ITERATIONS, MAX_ITERATIONS] is
+ * rejected before anything is derived, and a KEK derived for decryption
+ * is cached only after it has unwrapped the CEK, which this class checks
+ * itself, since jose4j's key unwrap hides a failure. So a stream of JWE
+ * with junk salts can neither burn CPU without limit nor evict the KEKs
+ * that work.
+ *
+ * jose4j picks the key management algorithm by name, from its algorithm
+ * factory, so register() replaces the stock PBES2-HS256+A128KW with the
+ * caching one. The callouts call it when they are loaded.
+ *
+ */
+public final class Pbes2KeyCache {
+    // the bounds on p2c; each iteration costs an HMAC
+    static final long MIN_ITERATIONS = 1000;
+    static final long MAX_ITERATIONS = 1000000;
+    // the bound the decryptor applies unless its policy sets pbes2-max-iterations
+    static final long DEFAULT_MAX_ITERATIONS = 100000;
+
+    private static final int MAX_KEYS = 1024;
+    private static final int MAX_SALTS = 256;
+    private static final String ALGORITHM = KeyManagementAlgorithmIdentifiers.PBES2_HS256_A128KW;
+    // the JCA name of the A128KW that follows the derivation
+    private static final String KEY_WRAP = "AESWrap";
+    private static final CachingHmacSha256Aes128 algorithm = new CachingHmacSha256Aes128();
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final Map<String,Key> keys = new LinkedHashMap<String,Key>(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,Key> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+
+    private static final Map<String,Salt> salts = new LinkedHashMap<String,Salt>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,Salt> eldest) {
+            return size() > MAX_SALTS;
+        }
+    };
+
+    private static final class Salt {
+        final String encoded;
+        final long expiresAtMillis;
+        Salt(String encoded, long expiresAtMillis) {
+            this.encoded = encoded;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private Pbes2KeyCache() {}
+
+    static void register() {
+        AlgorithmFactoryFactory.getInstance().getJweKeyManagementAlgorithmFactory().registerAlgorithm(algorithm);
+    }
+
+    // Sets the salt and iteration count on a JWE about to be encrypted with
+    // PBES2-HS256+A128KW, reusing the salt last chosen for the same secret
+    // if that was less than lifetimeMillis ago.
+    static void reuseSalt(JsonWebEncryption jwe, Key secret, long lifetimeMillis) {
+        String digest = digest(secret);
+        long now = System.currentTimeMillis();
+        Salt salt;
+        synchronized (salts) {
+            salt = salts.get(digest);
+            if (salt == null || now >= salt.expiresAtMillis) {
+                byte[] bytes = new byte[algorithm.getDefaultSaltByteLength()];
+                random.nextBytes(bytes);
+                salt = new Salt(Base64Url.encode(bytes), now + lifetimeMillis);
+                salts.put(digest, salt);
+            }
+        }
+        Headers headers = jwe.getHeaders();
+        headers.setStringHeaderValue("p2s", salt.encoded);
+        headers.setObjectHeaderValue("p2c", algorithm.getDefaultIterationCount());
+    }
+
+    // the number of KEKs held; for tests
+    public static int size() {
+        synchronized (keys) {
+            return keys.size();
+        }
+    }
+
+    static void clear() {
+        synchronized (keys) {
+            keys.clear();
+        }
+        synchronized (salts) {
+            salts.clear();
+        }
+    }
+
+    private static String digest(Key secret) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Hex.encodeHexString(md.digest(secret.getEncoded()));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Throws if the p2c in the headers is outside [MIN_ITERATIONS, maxIterations].
+    // A missing p2c is left for jose4j to report.
+    static void checkIterationCount(Headers headers, long maxIterations) {
+        Long iterationCount = headers.getLongHeaderValue("p2c");
+        if (iterationCount != null &&
+            (iterationCount < MIN_ITERATIONS || iterationCount > maxIterations)) {
+            throw new IllegalStateException(String.format("p2c out of range: %d, must be from %d to %d",
+                                                          iterationCount, MIN_ITERATIONS, maxIterations));
+        }
+    }
+
+    private static final class Kek {
+        final String cacheKey;
+        final Key key;
+        final boolean cached;
+        Kek(String cacheKey, Key key, boolean cached) {
+            this.cacheKey = cacheKey;
+            this.key = key;
+            this.cached = cached;
+        }
+    }
+
+    // The KEK for the secret, salt and count in the headers, from the cache
+    // if possible, else derived but not yet cached; or null if the headers
+    // lack a salt or count.
+    private static Kek getKey(Key secret, Headers headers, ProviderContext providerContext)
+        throws JoseException {
+        Long iterationCount = headers.getLongHeaderValue("p2c");
+        String encodedSalt = headers.getStringHeaderValue("p2s");
+        if (iterationCount == null || encodedSalt == null) {
+            return null;
+        }
+        checkIterationCount(headers, MAX_ITERATIONS);
+
+        String cacheKey = digest(secret) + "." + encodedSalt + "." + iterationCount;
+        Key key;
+        synchronized (keys) {
+            key = keys.get(cacheKey);
+        }
+        if (key != null) {
+            return new Kek(cacheKey, key, true);
+        }
+
+        // the salt input is the alg, a zero byte, and the salt (RFC 7518, 4.8.1.1)
+        byte[] alg = ALGORITHM.getBytes(StandardCharsets.UTF_8);
+        byte[] salt = Base64Url.decode(encodedSalt);
+        byte[] saltInput = new byte[alg.length + 1 + salt.length];
+        System.arraycopy(alg, 0, saltInput, 0, alg.length);
+        System.arraycopy(salt, 0, saltInput, alg.length + 1, salt.length);
+
+        // derive outside the lock; two threads may race to derive the same key, harmlessly
+        PasswordBasedKeyDerivationFunction2 pbkdf2 = new PasswordBasedKeyDerivationFunction2("HmacSHA256");
+        String macProvider = providerContext.getSuppliedKeyProviderContext().getMacProvider();
+        key = new AesKey(pbkdf2.derive(secret.getEncoded(), saltInput, iterationCount.intValue(), 16, macProvider));
+        return new Kek(cacheKey, key, false);
+    }
+
+    private static void remember(Kek kek) {
+        if (!kek.cached) {
+            synchronized (keys) {
+                keys.put(kek.cacheKey, kek.key);
+            }
+        }
+    }
+
+    static final class CachingHmacSha256Aes128 extends Pbes2HmacShaWithAesKeyWrapAlgorithm.HmacSha256Aes128 {
+        @Override
+        protected Key deriveForEncrypt(Key managementKey, Headers headers, ProviderContext providerContext)
+            throws JoseException {
+            // A salt set beforehand came from reuseSalt(). Otherwise the
+            // superclass picks a new random one, and the KEK is not worth keeping.
+            Kek kek = getKey(managementKey, headers, providerContext);
+            if (kek == null) {
+                return super.deriveForEncrypt(managementKey, headers, providerContext);
+            }
+            // the salt is our own, so the KEK is good
+            remember(kek);
+            return kek.key;
+        }
+
+        @Override
+        public Key manageForDecrypt(Key managementKey, byte[] encryptedKey,
+                                    ContentEncryptionKeyDescriptor cekDesc, Headers headers,
+                                    ProviderContext providerContext)
+            throws JoseException {
+            Kek kek = getKey(managementKey, headers, providerContext);
+            if (kek == null) {
+                // let the superclass report what is missing
+                return super.manageForDecrypt(managementKey, encryptedKey, cekDesc, headers, providerContext);
+            }
+            Key cek = unwrap(kek.key, encryptedKey, cekDesc, providerContext);
+            if (cek == null) {
+                // As jose4j does: a random CEK, so the failure shows only
+                // when the content does not authenticate. The KEK is not kept.
+                byte[] bytes = new byte[cekDesc.getContentEncryptionKeyByteLength()];
+                random.nextBytes(bytes);
+                return new SecretKeySpec(bytes, cekDesc.getContentEncryptionKeyAlgorithm());
+            }
+            remember(kek);
+            return cek;
+        }
+
+        // The CEK, or null if the KEK does not unwrap it. jose4j's own AES
+        // key wrap cannot tell us which: it never throws on a bad unwrap.
+        private static Key unwrap(Key kek, byte[] encryptedKey, ContentEncryptionKeyDescriptor cekDesc,
+                                  ProviderContext providerContext)
+            throws JoseException {
+            String provider = providerContext.getSuppliedKeyProviderContext().getCipherProvider();
+            Cipher cipher;
+            try {
+                cipher = (provider == null) ? Cipher.getInstance(KEY_WRAP) : Cipher.getInstance(KEY_WRAP, provider);
+            }
+            catch (GeneralSecurityException e) {
+                throw new JoseException(KEY_WRAP + " is not available.", e);
+            }
+            try {
+                cipher.init(Cipher.UNWRAP_MODE, kek);
+                return cipher.unwrap(encryptedKey, cekDesc.getContentEncryptionKeyAlgorithm(), Cipher.SECRET_KEY);
+            }
+            catch (GeneralSecurityException e) {
+                // InvalidKeyException when the integrity check fails
+                return null;
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.apigee.flow.execution.ExecutionResult;
 
 import com.apigee.callout.jwe.JweEncryptorCallout;
 import com.apigee.callout.jwe.JweDecryptorCallout;
+import com.apigee.callout.jwe.Pbes2KeyCache;
 
 import java.nio.charset.StandardCharsets;
 import org.apache.commons.ssl.PKCS8Key;
@@ -29,7 +30,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.GeneralSecurityException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.KeyFactory;
-
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwk.PublicJsonWebKey;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
 
@@ -325,4 +334,361 @@ public class TestJweCreation {
         Assert.assertTrue(StringUtils.isEmpty(error), "error");
     }
 
+    private static String getHeaderValue(String jwe, String name) {
+        String header = new String(Base64.decodeBase64(jwe.split("\\.")[0]), StandardCharsets.UTF_8);
+        Matcher m = Pattern.compile("\"" + name + "\":\"?([^\",}]+)").matcher(header);
+        return m.find() ? m.group(1) : null;
+    }
+
+    private String encrypt(Map properties) {
+        JweEncryptorCallout callout = new JweEncryptorCallout(properties);
+        ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(result, ExecutionResult.SUCCESS);
+        return msgCtxt.getVariable("jwe_jwe");
+    }
+
+    private String decrypt(String secretKey, String jwe) {
+        Map properties = new HashMap();
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", secretKey);
+        properties.put("jwe", jwe);
+        JweDecryptorCallout callout = new JweDecryptorCallout(properties);
+        ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(result, ExecutionResult.SUCCESS);
+        return msgCtxt.getVariable("jwe_plaintext");
+    }
+
+    @Test
+    public void NewSaltForEachJwe() {
+        String secretKey = "ABCDEFGH12345678_ABCDEFGH12345678";
+        Map properties = new HashMap();
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", secretKey);
+        properties.put("plaintext", "The quick brown fox jumps over the lazy dog");
+
+        String jwe1 = encrypt(properties);
+        String jwe2 = encrypt(properties);
+        Assert.assertNotNull(getHeaderValue(jwe1, "p2s"));
+        Assert.assertNotEquals(getHeaderValue(jwe1, "p2s"), getHeaderValue(jwe2, "p2s"));
+        Assert.assertEquals(decrypt(secretKey, jwe1), "The quick brown fox jumps over the lazy dog");
+        Assert.assertEquals(decrypt(secretKey, jwe2), "The quick brown fox jumps over the lazy dog");
+    }
+
+    @Test
+    public void ReusedSalt() {
+        String secretKey = "Reused-Salt-Secret-" + RandomStringUtils.randomAlphanumeric(16);
+        Map properties = new HashMap();
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", secretKey);
+        properties.put("pbes2-salt-lifetime", "60");
+        properties.put("plaintext", "The quick brown fox jumps over the lazy dog");
+
+        String jwe1 = encrypt(properties);
+        properties.put("plaintext", "Pack my box with five dozen liquor jugs");
+        String jwe2 = encrypt(properties);
+        Assert.assertNotEquals(jwe1, jwe2);
+        Assert.assertEquals(getHeaderValue(jwe1, "p2s"), getHeaderValue(jwe2, "p2s"));
+        Assert.assertEquals(getHeaderValue(jwe1, "p2c"), getHeaderValue(jwe2, "p2c"));
+        Assert.assertEquals(decrypt(secretKey, jwe1), "The quick brown fox jumps over the lazy dog");
+        Assert.assertEquals(decrypt(secretKey, jwe2), "Pack my box with five dozen liquor jugs");
+
+        // a different secret gets a salt of its own
+        properties.put("secret-key", secretKey + "-2");
+        String jwe3 = encrypt(properties);
+        Assert.assertNotEquals(getHeaderValue(jwe1, "p2s"), getHeaderValue(jwe3, "p2s"));
+        Assert.assertEquals(decrypt(secretKey + "-2", jwe3), "Pack my box with five dozen liquor jugs");
+    }
+
+    @Test
+    public void BadSaltLifetime() {
+        Map properties = new HashMap();
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", "ABCDEFGH12345678_ABCDEFGH12345678");
+        properties.put("pbes2-salt-lifetime", "forever");
+        properties.put("plaintext", "The quick brown fox jumps over the lazy dog");
+
+        JweEncryptorCallout callout = new JweEncryptorCallout(properties);
+        ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(result, ExecutionResult.ABORT);
+        String error = msgCtxt.getVariable("jwe_error");
+        Assert.assertEquals(error, "Exception java.lang.IllegalStateException: pbes2-salt-lifetime is not a number: 'forever'");
+    }
+
+    // the JWE with its p2c header replaced; the header no longer matches
+    // the ciphertext, but it is checked before anything is decrypted
+    private static String withIterationCount(String jwe, long count) {
+        String[] parts = jwe.split("\\.", -1);
+        String header = new String(Base64.decodeBase64(parts[0]), StandardCharsets.UTF_8);
+        header = header.replaceAll("\"p2c\":[0-9]+", "\"p2c\":" + count);
+        parts[0] = Base64.encodeBase64URLSafeString(header.getBytes(StandardCharsets.UTF_8));
+        return StringUtils.join(parts, ".");
+    }
+
+    private String decryptWithIterationCount(String secretKey, String jwe, String maxIterations) {
+        Map properties = new HashMap();
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", secretKey);
+        properties.put("jwe", jwe);
+        if (maxIterations != null) {
+            properties.put("pbes2-max-iterations", maxIterations);
+        }
+        JweDecryptorCallout callout = new JweDecryptorCallout(properties);
+        Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+        return msgCtxt.getVariable("jwe_error");
+    }
+
+    @Test
+    public void IterationCountOutOfRange() {
+        String secretKey = "ABCDEFGH12345678_ABCDEFGH12345678";
+        Map properties = new HashMap();
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", secretKey);
+        properties.put("plaintext", "The quick brown fox jumps over the lazy dog");
+        String jwe = encrypt(properties);
+
+        String error = decryptWithIterationCount(secretKey, withIterationCount(jwe, 2000000000L), null);
+        Assert.assertEquals(error, "Exception java.lang.IllegalStateException: p2c out of range: 2000000000, must be from 1000 to 100000");
+        error = decryptWithIterationCount(secretKey, withIterationCount(jwe, 10), null);
+        Assert.assertEquals(error, "Exception java.lang.IllegalStateException: p2c out of range: 10, must be from 1000 to 100000");
+
+        // the policy may lower the maximum
+        error = decryptWithIterationCount(secretKey, jwe, "1000");
+        Assert.assertTrue(error.startsWith("Exception java.lang.IllegalStateException: p2c out of range:"), error);
+        error = decryptWithIterationCount(secretKey, jwe, "99999999");
+        Assert.assertEquals(error, "Exception java.lang.IllegalStateException: pbes2-max-iterations must be from 1000 to 1000000");
+    }
+
+    // the JWE with its p2s header replaced by a random salt
+    private static String withRandomSalt(String jwe) {
+        String[] parts = jwe.split("\\.", -1);
+        String header = new String(Base64.decodeBase64(parts[0]), StandardCharsets.UTF_8);
+        String salt = Base64.encodeBase64URLSafeString(RandomStringUtils.randomAlphanumeric(16).getBytes(StandardCharsets.UTF_8));
+        header = header.replaceAll("\"p2s\":\"[^\"]*\"", "\"p2s\":\"" + salt + "\"");
+        parts[0] = Base64.encodeBase64URLSafeString(header.getBytes(StandardCharsets.UTF_8));
+        return StringUtils.join(parts, ".");
+    }
+
+    @Test
+    public void ForgedSaltIsNotCached() {
+        String secretKey = "Forged-Salt-Secret-" + RandomStringUtils.randomAlphanumeric(16);
+        Map properties = new HashMap();
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", secretKey);
+        properties.put("plaintext", "The quick brown fox jumps over the lazy dog");
+        String jwe = encrypt(properties);
+
+        properties = new HashMap();
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", secretKey);
+        int size = Pbes2KeyCache.size();
+        for (int i = 0; i < 5; i++) {
+            properties.put("jwe", withRandomSalt(jwe));
+            JweDecryptorCallout callout = new JweDecryptorCallout(properties);
+            Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+        }
+        // the KEKs derived from the forged salts did not unwrap the CEK
+        Assert.assertEquals(Pbes2KeyCache.size(), size);
+
+        properties.put("jwe", jwe);
+        JweDecryptorCallout callout = new JweDecryptorCallout(properties);
+        Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+        Assert.assertEquals(Pbes2KeyCache.size(), size + 1);
+    }
+
+    @Test
+    public void SecretKeyVariableChanges() {
+        // the key built for one value of the variable must not be used for the next
+        String secretKey1 = "Changing-Secret-" + RandomStringUtils.randomAlphanumeric(16);
+        String secretKey2 = "Changing-Secret-" + RandomStringUtils.randomAlphanumeric(16);
+        Map properties = new HashMap();
+        properties.put("key-management-algorithm", "A256KW");
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", "{my_secret}");
+        properties.put("plaintext", "The quick brown fox jumps over the lazy dog");
+
+        msgCtxt.setVariable("my_secret", secretKey1);
+        String jwe1 = encrypt(properties);
+        msgCtxt.setVariable("my_secret", secretKey2);
+        String jwe2 = encrypt(properties);
+
+        properties = new HashMap();
+        properties.put("key-management-algorithm", "A256KW");
+        properties.put("algorithm", "A128CBC-HS256");
+        properties.put("secret-key", "{my_secret}");
+        properties.put("jwe", jwe2);
+        msgCtxt.setVariable("my_secret", secretKey1);
+        JweDecryptorCallout callout = new JweDecryptorCallout(properties);
+        Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+
+        msgCtxt.setVariable("my_secret", secretKey2);
+        Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+        Assert.assertEquals(msgCtxt.getVariable("jwe_plaintext"), "The quick brown fox jumps over the lazy dog");
+
+        properties.put("jwe", jwe1);
+        msgCtxt.setVariable("my_secret", secretKey1);
+        callout = new JweDecryptorCallout(properties);
+        Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    }
+
+    private String roundTrip(String keyManagementAlgorithm, String algorithm,
+                             String encryptKeyProperty, String encryptKey,
+                             String decryptKeyProperty, String decryptKey) {
+        String plainText = "The quick brown fox jumps over the lazy dog.";
+        Map properties = new HashMap();
+        properties.put("key-management-algorithm", keyManagementAlgorithm);
+        properties.put("algorithm", algorithm);
+        properties.put(encryptKeyProperty, encryptKey);
+        properties.put("plaintext", plainText);
+        String jwe = encrypt(properties);
+        Assert.assertEquals(getHeaderValue(jwe, "alg"), keyManagementAlgorithm);
+
+        properties = new HashMap();
+        properties.put("key-management-algorithm", keyManagementAlgorithm);
+        properties.put("algorithm", algorithm);
+        properties.put(decryptKeyProperty, decryptKey);
+        properties.put("jwe", jwe);
+        JweDecryptorCallout callout = new JweDecryptorCallout(properties);
+        ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(result, ExecutionResult.SUCCESS, (String) msgCtxt.getVariable("jwe_error"));
+        Assert.assertEquals(msgCtxt.getVariable("jwe_plaintext"), plainText, "Plaintext");
+        return jwe;
+    }
+
+    private static String privateJwk(KeyPair keyPair) throws Exception {
+        PublicJsonWebKey jwk = PublicJsonWebKey.Factory.newPublicJwk(keyPair.getPublic());
+        jwk.setPrivateKey(keyPair.getPrivate());
+        return jwk.toJson(JsonWebKey.OutputControlLevel.INCLUDE_PRIVATE);
+    }
+
+    @Test
+    public void DirectEncryption() {
+        // A128GCM takes a 128-bit key, A128CBC-HS256 a 256-bit key
+        String jwe = roundTrip("dir", "A128GCM", "secret-key", "ABCDEFGH12345678",
+                               "secret-key", "ABCDEFGH12345678");
+        Assert.assertEquals(jwe.split("\\.")[1], "", "no encrypted key");
+        roundTrip("dir", "A128CBC-HS256", "secret-key", "ABCDEFGH12345678_ABCDEFGH1234567",
+                  "secret-key", "ABCDEFGH12345678_ABCDEFGH1234567");
+    }
+
+    @Test
+    public void AesKeyWrapWithJwk() {
+        String jwk = "{\"kty\":\"oct\",\"k\":\"GawgguFyGrWKav7AX4VKUg7OMuF0ijWHLiUfRGmnUoI\"}";
+        roundTrip("A256KW", "A256GCM", "jwk", jwk, "jwk", jwk);
+        msgCtxt.setVariable("private.jwk", jwk);
+        roundTrip("A256KW", "A256GCM", "jwk", "{private.jwk}", "jwk", "{private.jwk}");
+        roundTrip("A128KW", "A128CBC-HS256", "secret-key", "ABCDEFGH12345678",
+                  "secret-key", "ABCDEFGH12345678");
+    }
+
+    @Test
+    public void InlineJwkWithWhitespace() {
+        // pretty-printed JSON is still inline, not a variable reference
+        String jwk = "{ \"kty\": \"oct\",\n  \"k\": \"GawgguFyGrWKav7AX4VKUg7OMuF0ijWHLiUfRGmnUoI\"\n}";
+        roundTrip("A256KW", "A256GCM", "jwk", jwk, "jwk", jwk);
+        jwk = "\n{\n\t\"kty\":\"oct\",\"k\":\"GawgguFyGrWKav7AX4VKUg7OMuF0ijWHLiUfRGmnUoI\"}";
+        roundTrip("A256KW", "A256GCM", "jwk", jwk, "jwk", jwk);
+    }
+
+    @Test
+    public void RsaOaep256() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String publicKeyPem = "-----BEGIN PUBLIC KEY-----\n" +
+            Base64.encodeBase64String(keyPair.getPublic().getEncoded()) +
+            "\n-----END PUBLIC KEY-----\n";
+        roundTrip("RSA-OAEP-256", "A128CBC-HS256", "public-key", publicKeyPem,
+                  "jwk", privateJwk(keyPair));
+    }
+
+    @Test
+    public void EcdhEs() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        String publicJwk = PublicJsonWebKey.Factory.newPublicJwk(keyPair.getPublic()).toJson();
+        roundTrip("ECDH-ES+A128KW", "A128GCM", "jwk", publicJwk, "jwk", privateJwk(keyPair));
+        roundTrip("ECDH-ES", "A256GCM", "jwk", publicJwk, "jwk", privateJwk(keyPair));
+    }
+
+    // the JWE with its epk header replaced
+    private static String withEphemeralKey(String jwe, String epk) {
+        String[] parts = jwe.split("\\.", -1);
+        String header = new String(Base64.decodeBase64(parts[0]), StandardCharsets.UTF_8);
+        header = header.replaceAll("\"epk\":\\{[^}]*\\}", Matcher.quoteReplacement("\"epk\":" + epk));
+        parts[0] = Base64.encodeBase64URLSafeString(header.getBytes(StandardCharsets.UTF_8));
+        return StringUtils.join(parts, ".");
+    }
+
+    private String decryptEcdhEs(String privateJwk, String jwe) {
+        Map properties = new HashMap();
+        properties.put("key-management-algorithm", "ECDH-ES+A128KW");
+        properties.put("algorithm", "A128GCM");
+        properties.put("jwk", privateJwk);
+        properties.put("jwe", jwe);
+        JweDecryptorCallout callout = new JweDecryptorCallout(properties);
+        Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+        return msgCtxt.getVariable("jwe_error");
+    }
+
+    @Test
+    public void EcdhEsInvalidEphemeralKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        String publicJwk = PublicJsonWebKey.Factory.newPublicJwk(keyPair.getPublic()).toJson();
+        String jwe = roundTrip("ECDH-ES+A128KW", "A128GCM", "jwk", publicJwk, "jwk", privateJwk(keyPair));
+
+        // a point that is not on P-256: the x of one key with the y of another
+        Map<String, Object> other = PublicJsonWebKey.Factory.newPublicJwk(generator.generateKeyPair().getPublic())
+            .toParams(JsonWebKey.OutputControlLevel.PUBLIC_ONLY);
+        Map<String, Object> params = PublicJsonWebKey.Factory.newPublicJwk(keyPair.getPublic())
+            .toParams(JsonWebKey.OutputControlLevel.PUBLIC_ONLY);
+        String offCurve = String.format("{\"kty\":\"EC\",\"crv\":\"P-256\",\"x\":\"%s\",\"y\":\"%s\"}",
+                                        params.get("x"), other.get("y"));
+        String error = decryptEcdhEs(privateJwk(keyPair), withEphemeralKey(jwe, offCurve));
+        Assert.assertEquals(error, "Exception java.lang.IllegalStateException: epk is not on the curve of the private key.");
+
+        // a point on another curve
+        generator.initialize(new ECGenParameterSpec("secp384r1"));
+        String otherCurve = PublicJsonWebKey.Factory.newPublicJwk(generator.generateKeyPair().getPublic()).toJson();
+        error = decryptEcdhEs(privateJwk(keyPair), withEphemeralKey(jwe, otherCurve));
+        Assert.assertEquals(error, "Exception java.lang.IllegalStateException: epk is not on the curve of the private key.");
+    }
+
+    @Test
+    public void MismatchedKeyManagementAlgorithm() {
+        Map properties = new HashMap();
+        properties.put("key-management-algorithm", "dir");
+        properties.put("algorithm", "A128GCM");
+        properties.put("secret-key", "ABCDEFGH12345678");
+        properties.put("plaintext", "The quick brown fox jumps over the lazy dog");
+        String jwe = encrypt(properties);
+
+        // the decryptor expects the default, PBES2
+        properties = new HashMap();
+        properties.put("algorithm", "A128GCM");
+        properties.put("secret-key", "ABCDEFGH12345678");
+        properties.put("jwe", jwe);
+        JweDecryptorCallout callout = new JweDecryptorCallout(properties);
+        ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(result, ExecutionResult.ABORT);
+        String error = msgCtxt.getVariable("jwe_error");
+        Assert.assertEquals(error, "Key management algorithm mismatch: found [dir], expected [PBES2-HS256+A128KW]");
+    }
+
+    @Test
+    public void UnsupportedKeyManagementAlgorithm() {
+        Map properties = new HashMap();
+        properties.put("key-management-algorithm", "RSA1_5");
+        properties.put("algorithm", "A128GCM");
+        properties.put("secret-key", "ABCDEFGH12345678");
+        properties.put("plaintext", "The quick brown fox jumps over the lazy dog");
+        JweEncryptorCallout callout = new JweEncryptorCallout(properties);
+        ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+        Assert.assertEquals(result, ExecutionResult.ABORT);
+        String error = msgCtxt.getVariable("jwe_error");
+        Assert.assertEquals(error, "Exception java.lang.IllegalStateException: unsupported key-management-algorithm: 'RSA1_5'");
+    }
+
 }
@@ -0,0 +1,77 @@
+package com.apigee.callout.jwt_encrypted;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+
+import org.apache.commons.codec.binary.Base64;
+
+import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.lang.JoseException;
+
+/*
+ * BenchmarkKeys
+ *
+ * An RSA key pair for the benchmarks, generated once per JVM, in the PEM
+ * forms the callouts read: the public key as "PUBLIC KEY", and the private
+ * key as an unencrypted PKCS#8 "PRIVATE KEY". The validator insists on a
+ * private-key-password property; for an unencrypted key PKCS8Key ignores it.
+ *
+ */
+final class BenchmarkKeys {
+    static final String PRIVATE_KEY_PASSWORD = "unused";
+    static final RSAPublicKey PUBLIC_KEY;
+    static final RSAPrivateKey PRIVATE_KEY;
+    static final String PUBLIC_KEY_PEM;
+    static final String PRIVATE_KEY_PEM;
+
+    static {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            KeyPair keyPair = generator.generateKeyPair();
+            PUBLIC_KEY = (RSAPublicKey) keyPair.getPublic();
+            PRIVATE_KEY = (RSAPrivateKey) keyPair.getPrivate();
+            PUBLIC_KEY_PEM = toPem("PUBLIC KEY", PUBLIC_KEY.getEncoded());
+            PRIVATE_KEY_PEM = toPem("PRIVATE KEY", PRIVATE_KEY.getEncoded());
+        }
+        catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private BenchmarkKeys() {}
+
+    private static String toPem(String type, byte[] der) {
+        return "-----BEGIN " + type + "-----\n" +
+            new String(Base64.encodeBase64Chunked(der)).trim() +
+            "\n-----END " + type + "-----\n";
+    }
+
+    // A JWT encrypted the way JWT_Encrypted_Creator_Callout does it, with
+    // claims padded out to about the given size.
+    static String encryptedJwt(int payloadSize) throws JoseException {
+        JwtClaims claims = new JwtClaims();
+        claims.setIssuer("urn:benchmark");
+        claims.setExpirationTimeMinutesInTheFuture(60);
+        claims.setGeneratedJwtId();
+        claims.setSubject("users");
+        StringBuilder data = new StringBuilder(payloadSize);
+        while (data.length() < payloadSize) {
+            data.append("0123456789abcdef");
+        }
+        data.setLength(payloadSize);
+        claims.setClaim("data", data.toString());
+
+        JsonWebEncryption jwe = new JsonWebEncryption();
+        jwe.setKey(PUBLIC_KEY);
+        jwe.setPayload(claims.toJson());
+        jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.RSA_OAEP_256);
+        jwe.setEncryptionMethodHeaderParameter(ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256);
+        return jwe.getCompactSerialization();
+    }
+}
@@ -0,0 +1,54 @@
+package com.apigee.callout.jwt_encrypted;
+
+import com.apigee.flow.message.MessageContext;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * InMemoryMessageContext
+ *
+ * A MessageContext for running the callouts outside of Edge. The
+ * variable methods, which are all the callouts use, are backed by a
+ * HashMap; anything else throws. It is a dynamic proxy so that it does
+ * not depend on the exact set of methods in message-flow.jar.
+ *
+ */
+final class InMemoryMessageContext implements InvocationHandler {
+    private final Map<String,Object> variables = new HashMap<String,Object>();
+
+    private InMemoryMessageContext() {}
+
+    static MessageContext create() {
+        return (MessageContext) Proxy.newProxyInstance(MessageContext.class.getClassLoader(),
+                                                       new Class<?>[] { MessageContext.class },
+                                                       new InMemoryMessageContext());
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getVariable")) {
+            return variables.get((String) args[0]);
+        }
+        if (name.equals("setVariable")) {
+            variables.put((String) args[0], args[1]);
+            return true;
+        }
+        if (name.equals("removeVariable")) {
+            return variables.remove((String) args[0]) != null;
+        }
+        if (name.equals("equals")) {
+            return proxy == args[0];
+        }
+        if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        if (name.equals("toString")) {
+            return "InMemoryMessageContext" + variables.keySet();
+        }
+        throw new UnsupportedOperationException(name);
+    }
+}
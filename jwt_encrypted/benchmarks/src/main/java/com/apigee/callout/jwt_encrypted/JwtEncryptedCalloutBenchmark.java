@@ -0,0 +1,88 @@
+package com.apigee.callout.jwt_encrypted;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * JwtEncryptedCalloutBenchmark
+ *
+ * Measures JWT_Encrypted_Creator_Callout and
+ * JWT_Encrypted_Validator_Callout end to end, through execute(). The
+ * creator emits the same claims as the example proxy, from a json-payload
+ * template with a reference to a variable and a claim_ property, so its
+ * cost does not vary with payloadSize; the validator is given JWTs with
+ * claims from 100 bytes to 1 MB, encrypted the same way the creator does it.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtEncryptedCalloutBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int payloadSize;
+
+    private JWT_Encrypted_Creator_Callout creator;
+    private JWT_Encrypted_Validator_Callout validator;
+    private MessageContext msgCtxt;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Map<String,String> creatorProperties = new HashMap<String,String>();
+        creatorProperties.put("issuer", "urn:benchmark");
+        creatorProperties.put("expirationInMinutes", "60");
+        creatorProperties.put("public-key", BenchmarkKeys.PUBLIC_KEY_PEM);
+        creatorProperties.put("subject", "users");
+        creatorProperties.put("json-payload",
+                              "{\"email\":\"{user.email}\",\"Country\":\"USA\",\"active\":\"true\",\"url\":\"www.mycompany.com\"}");
+        creatorProperties.put("claim_dealerId", "1234");
+        Map<String,String> validatorProperties = new HashMap<String,String>();
+        validatorProperties.put("jwt", "{benchmark.jwt}");
+        validatorProperties.put("private-key", BenchmarkKeys.PRIVATE_KEY_PEM);
+        validatorProperties.put("private-key-password", BenchmarkKeys.PRIVATE_KEY_PASSWORD);
+
+        creator = new JWT_Encrypted_Creator_Callout(creatorProperties);
+        validator = new JWT_Encrypted_Validator_Callout(validatorProperties);
+        msgCtxt = InMemoryMessageContext.create();
+        msgCtxt.setVariable("user.email", "users@test.com");
+        if (creator.execute(msgCtxt, null) != ExecutionResult.SUCCESS) {
+            throw new IllegalStateException("setup: create: " + msgCtxt.getVariable("jwt_error"));
+        }
+        msgCtxt.setVariable("benchmark.jwt", BenchmarkKeys.encryptedJwt(payloadSize));
+        validator.execute(msgCtxt, null);
+        // the validator returns SUCCESS even when it fails
+        if (msgCtxt.getVariable("jwt_receivedClaims") == null) {
+            throw new IllegalStateException("setup: validate: " + msgCtxt.getVariable("jwt_error"));
+        }
+    }
+
+    @Benchmark
+    public ExecutionResult create() {
+        return creator.execute(msgCtxt, null);
+    }
+
+    @Benchmark
+    public ExecutionResult validate() {
+        return validator.execute(msgCtxt, null);
+    }
+}
@@ -0,0 +1,163 @@
+package com.apigee.callout.jwt_encrypted;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.ssl.PKCS8Key;
+
+import org.jose4j.base64url.Base64Url;
+import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
+import org.jose4j.jwx.CompactSerializer;
+import org.jose4j.keys.AesKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * JwtEncryptedStagesBenchmark
+ *
+ * Measures, one at a time, the stages that the encrypted-JWT callouts go
+ * through on every request:
+ *
+ *   publicKeyParsing  - the public-key PEM into a PublicKey, as the creator does
+ *   privateKeyParsing - the private-key PEM into a PrivateKey, via PKCS8Key,
+ *                       as the validator does
+ *   cekAndIv          - a new content encryption key and IV, as the creator
+ *                       makes them
+ *   keyWrap           - RSA-OAEP-256 encryption of the CEK with the public key
+ *   keyUnwrap         - RSA-OAEP-256 decryption of the CEK with the private key
+ *   contentEncryption - the claims into a JWE with alg=dir, so there is no
+ *                       key management; this includes serialization
+ *   contentDecryption - the reverse
+ *   serialization     - base64url encoding and joining the five parts
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtEncryptedStagesBenchmark {
+    private static final OAEPParameterSpec RSA_OAEP_256 =
+        new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+
+    @Param({"100", "10000", "1000000"})
+    public int payloadSize;
+
+    private String claimsJson;
+    private byte[] contentEncryptionKey;
+    private byte[] wrappedKey;
+    private String directJwe;
+    private String[] encodedParts;
+    private byte[] iv;
+    private byte[] ciphertext;
+    private byte[] authenticationTag;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        StringBuilder data = new StringBuilder(payloadSize);
+        while (data.length() < payloadSize) {
+            data.append("0123456789abcdef");
+        }
+        data.setLength(payloadSize);
+        claimsJson = "{\"iss\":\"urn:benchmark\",\"sub\":\"users\",\"data\":\"" + data + "\"}";
+
+        // A128CBC-HS256 takes a 256-bit key
+        contentEncryptionKey = new byte[32];
+        new SecureRandom().nextBytes(contentEncryptionKey);
+        wrappedKey = keyWrap();
+
+        directJwe = contentEncryption();
+        encodedParts = CompactSerializer.deserialize(directJwe);
+        iv = Base64Url.decode(encodedParts[2]);
+        ciphertext = Base64Url.decode(encodedParts[3]);
+        authenticationTag = Base64Url.decode(encodedParts[4]);
+    }
+
+    @Benchmark
+    public PublicKey publicKeyParsing() throws Exception {
+        String publicKey = BenchmarkKeys.PUBLIC_KEY_PEM.trim();
+        publicKey = publicKey.substring(26, publicKey.length() - 24);
+        publicKey = publicKey.replaceAll("[\\r|\\n| ]","");
+        X509EncodedKeySpec spec = new X509EncodedKeySpec(Base64.decodeBase64(publicKey));
+        return KeyFactory.getInstance("RSA").generatePublic(spec);
+    }
+
+    @Benchmark
+    public PrivateKey privateKeyParsing() throws Exception {
+        byte[] keyBytes = BenchmarkKeys.PRIVATE_KEY_PEM.trim().getBytes(StandardCharsets.UTF_8);
+        PKCS8Key pkcs8 = new PKCS8Key(keyBytes, BenchmarkKeys.PRIVATE_KEY_PASSWORD.toCharArray());
+        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(pkcs8.getDecryptedBytes());
+        return KeyFactory.getInstance("RSA").generatePrivate(spec);
+    }
+
+    @Benchmark
+    public void cekAndIv(Blackhole bh) {
+        bh.consume(Randomness.nextBytes(32));
+        bh.consume(Randomness.nextBytes(16));
+    }
+
+    @Benchmark
+    public byte[] keyWrap() throws Exception {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, BenchmarkKeys.PUBLIC_KEY, RSA_OAEP_256);
+        return cipher.doFinal(contentEncryptionKey);
+    }
+
+    @Benchmark
+    public byte[] keyUnwrap() throws Exception {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        cipher.init(Cipher.DECRYPT_MODE, BenchmarkKeys.PRIVATE_KEY, RSA_OAEP_256);
+        return cipher.doFinal(wrappedKey);
+    }
+
+    @Benchmark
+    public String contentEncryption() throws Exception {
+        JsonWebEncryption jwe = new JsonWebEncryption();
+        jwe.setKey(new AesKey(contentEncryptionKey));
+        jwe.setPayload(claimsJson);
+        jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.DIRECT);
+        jwe.setEncryptionMethodHeaderParameter(ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256);
+        return jwe.getCompactSerialization();
+    }
+
+    @Benchmark
+    public String contentDecryption() throws Exception {
+        JsonWebEncryption jwe = new JsonWebEncryption();
+        jwe.setCompactSerialization(directJwe);
+        jwe.setKey(new AesKey(contentEncryptionKey));
+        return jwe.getPayload();
+    }
+
+    @Benchmark
+    public String serialization() {
+        return CompactSerializer.serialize(encodedParts[0], Base64Url.encode(wrappedKey), Base64Url.encode(iv),
+                                           Base64Url.encode(ciphertext), Base64Url.encode(authenticationTag));
+    }
+}
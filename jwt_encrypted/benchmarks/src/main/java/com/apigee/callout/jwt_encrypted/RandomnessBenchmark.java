@@ -0,0 +1,55 @@
+package com.apigee.callout.jwt_encrypted;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * RandomnessBenchmark
+ *
+ * The latency of getting a CEK and an IV, with 64 threads asking at once,
+ * as a message processor under load does:
+ *
+ *   perRequestGenerators - a new KeyGenerator and a new SHA1PRNG for every
+ *                          request, with the IV from generateSeed(), as the
+ *                          creator used to do
+ *   sharedRandomness     - Randomness, the striped generators the creator
+ *                          uses now
+ *
+ * This runs in sample mode, so look at the percentiles and the maximum, not
+ * the mean: a request that waits on the entropy source shows up in the tail.
+ *
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class RandomnessBenchmark {
+
+    @Benchmark
+    public void perRequestGenerators(Blackhole bh) throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        bh.consume(keyGen.generateKey());
+        bh.consume(SecureRandom.getInstance("SHA1PRNG").generateSeed(16));
+    }
+
+    @Benchmark
+    public void sharedRandomness(Blackhole bh) {
+        bh.consume(Randomness.nextBytes(32));
+        bh.consume(Randomness.nextBytes(16));
+    }
+}
@@ -0,0 +1,285 @@
+package com.apigee.callout.jwt_encrypted;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jose4j.json.JsonUtil;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.lang.JoseException;
+
+import com.apigee.flow.message.MessageContext;
+
+/*
+ * ClaimsTemplate
+ *
+ * The claims the creator puts in a JWT, from its properties, compiled once
+ * when the policy is constructed:
+ *
+ *   json-payload - a JSON object, the claims to start from. A string in it
+ *                  may refer to context variables, like "{user.email}" or
+ *                  "urn:{client_id}".
+ *   subject      - the sub claim.
+ *   claim_xxx    - the claim xxx, which overrides one of the same name in
+ *                  the json-payload. claim_aud is split on commas into an
+ *                  array, and claim_json_xxx is parsed as JSON into claim xxx.
+ *
+ * The JSON is parsed once, here, and each string value that refers to a
+ * variable is split into its literal parts and references. Resolving the
+ * claims for a request then only looks up the variables; nothing is parsed
+ * and no JSON is escaped. A string that is just one reference, like
+ * "{user.roles}", takes the value of the variable as it is, so an array
+ * stays an array.
+ *
+ * A json-payload that is not a valid JSON object is recorded, not thrown,
+ * and reported on each request.
+ *
+ */
+final class ClaimsTemplate {
+    private static final String CLAIM_PREFIX = "claim_";
+    private static final String JSON_PREFIX = "json_";
+
+    // compiled: the values are literals, Templates, Maps or Lists of these
+    private final Map<String,Object> payload;
+    private final Template subject;
+    private final List<Claim> claims;
+    private final String error;
+
+    private ClaimsTemplate(Map<String,Object> payload, Template subject, List<Claim> claims, String error) {
+        this.payload = payload;
+        this.subject = subject;
+        this.claims = claims;
+        this.error = error;
+    }
+
+    private static final class Claim {
+        final String name;
+        final Template value;
+        final boolean isJson;
+
+        Claim(String name, Template value, boolean isJson) {
+            this.name = name;
+            this.value = value;
+            this.isJson = isJson;
+        }
+    }
+
+    static ClaimsTemplate compile(Map<String,String> properties) {
+        Map<String,Object> payload = null;
+        String error = null;
+        String json = properties.get("json-payload");
+        if (json != null && !json.trim().equals("")) {
+            try {
+                payload = compileObject(JsonUtil.parseJson(json.trim()));
+            }
+            catch (JoseException e) {
+                error = "json-payload is not a valid JSON object: " + e.getMessage();
+            }
+        }
+
+        String value = properties.get("subject");
+        Template subject = (value == null || value.trim().equals("")) ? null : Template.compile(value.trim());
+
+        List<Claim> claims = new ArrayList<Claim>();
+        for (Map.Entry<String,String> entry : properties.entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith(CLAIM_PREFIX) && name.length() > CLAIM_PREFIX.length()) {
+                name = name.substring(CLAIM_PREFIX.length());
+                boolean isJson = name.startsWith(JSON_PREFIX) && name.length() > JSON_PREFIX.length();
+                if (isJson) {
+                    name = name.substring(JSON_PREFIX.length());
+                }
+                claims.add(new Claim(name, Template.compile(entry.getValue()), isJson));
+            }
+        }
+        return new ClaimsTemplate(payload, subject, claims, error);
+    }
+
+    // Sets the claims on the JwtClaims, resolving any references to context variables.
+    void apply(JwtClaims jwtClaims, MessageContext msgCtxt) throws JoseException {
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
+        if (payload != null) {
+            for (Map.Entry<String,Object> entry : payload.entrySet()) {
+                Object value = resolve(entry.getValue(), msgCtxt);
+                if (value != null) {
+                    jwtClaims.setClaim(entry.getKey(), value);
+                }
+            }
+        }
+        if (subject != null) {
+            Object value = subject.resolve(msgCtxt);
+            if (value != null) {
+                jwtClaims.setSubject(value.toString());
+            }
+        }
+        for (Claim claim : claims) {
+            Object value = claim.value.resolve(msgCtxt);
+            if (value == null) {
+                continue;
+            }
+            if (claim.isJson) {
+                try {
+                    jwtClaims.setClaim(claim.name, JsonUtil.parseJson(value.toString()));
+                }
+                catch (JoseException e) {
+                    throw new IllegalStateException("cannot parse claim as json: " + claim.name, e);
+                }
+            }
+            else if (claim.name.equals("aud") && value instanceof String) {
+                jwtClaims.setAudience(((String) value).split("\\s*,\\s*"));
+            }
+            else {
+                jwtClaims.setClaim(claim.name, value);
+            }
+        }
+    }
+
+    private static Map<String,Object> compileObject(Map<String,Object> object) {
+        Map<String,Object> compiled = new LinkedHashMap<String,Object>();
+        for (Map.Entry<String,Object> entry : object.entrySet()) {
+            compiled.put(entry.getKey(), compileValue(entry.getValue()));
+        }
+        return compiled;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object compileValue(Object value) {
+        if (value instanceof String) {
+            Template template = Template.compile((String) value);
+            return template.isLiteral() ? value : template;
+        }
+        if (value instanceof Map) {
+            return compileObject((Map<String,Object>) value);
+        }
+        if (value instanceof List) {
+            List<Object> compiled = new ArrayList<Object>();
+            for (Object item : (List<Object>) value) {
+                compiled.add(compileValue(item));
+            }
+            return compiled;
+        }
+        // a number, boolean or null
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object resolve(Object value, MessageContext msgCtxt) {
+        if (value instanceof Template) {
+            return ((Template) value).resolve(msgCtxt);
+        }
+        if (value instanceof Map) {
+            Map<String,Object> resolved = new LinkedHashMap<String,Object>();
+            for (Map.Entry<String,Object> entry : ((Map<String,Object>) value).entrySet()) {
+                resolved.put(entry.getKey(), resolve(entry.getValue(), msgCtxt));
+            }
+            return resolved;
+        }
+        if (value instanceof List) {
+            List<Object> resolved = new ArrayList<Object>();
+            for (Object item : (List<Object>) value) {
+                resolved.add(resolve(item, msgCtxt));
+            }
+            return resolved;
+        }
+        return value;
+    }
+
+    /*
+     * A string, split into literal parts and references to context
+     * variables, like ABC-{apikey}. A reference is a pair of curlies around
+     * a name with no curly, space or double-quote in it; anything else is
+     * literal text.
+     */
+    static final class Template {
+        private final String spec;
+        // literals.length == variables.length + 1; literal i precedes variable i
+        private final String[] literals;
+        private final String[] variables;
+
+        private Template(String spec, String[] literals, String[] variables) {
+            this.spec = spec;
+            this.literals = literals;
+            this.variables = variables;
+        }
+
+        static Template compile(String spec) {
+            List<String> literals = new ArrayList<String>();
+            List<String> variables = new ArrayList<String>();
+            int literalStart = 0;
+            int open = spec.indexOf('{');
+            while (open != -1) {
+                int close = endOfReference(spec, open);
+                if (close == -1) {
+                    // not a reference; the curly is literal text
+                    open = spec.indexOf('{', open + 1);
+                }
+                else {
+                    literals.add(spec.substring(literalStart, open));
+                    variables.add(spec.substring(open + 1, close));
+                    literalStart = close + 1;
+                    open = spec.indexOf('{', literalStart);
+                }
+            }
+            literals.add(spec.substring(literalStart));
+            return new Template(spec, literals.toArray(new String[0]), variables.toArray(new String[0]));
+        }
+
+        // returns the index of the closing curly, or -1 if there is no valid name
+        private static int endOfReference(String spec, int open) {
+            for (int i = open + 1; i < spec.length(); i++) {
+                char c = spec.charAt(i);
+                if (c == '}') {
+                    return (i > open + 1) ? i : -1;
+                }
+                if (c == '{' || c == ' ' || c == '"') {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        boolean isLiteral() {
+            return variables.length == 0;
+        }
+
+        // A String, or, for a spec that is a single reference, the value of
+        // the variable as it is, with an array as a List; null if that is unset.
+        Object resolve(MessageContext msgCtxt) {
+            if (variables.length == 0) {
+                return spec;
+            }
+            if (variables.length == 1 && literals[0].isEmpty() && literals[1].isEmpty()) {
+                return toJsonValue(msgCtxt.getVariable(variables[0]));
+            }
+            StringBuilder sb = new StringBuilder(spec.length() + 32);
+            for (int i = 0; i < variables.length; i++) {
+                sb.append(literals[i]);
+                Object value = msgCtxt.getVariable(variables[i]);
+                if (value != null) {
+                    sb.append(value.toString());
+                }
+            }
+            sb.append(literals[variables.length]);
+            return sb.toString();
+        }
+
+        // a value that serializes to JSON as itself; anything unusual as its string
+        private static Object toJsonValue(Object value) {
+            if (value == null || value instanceof String || value instanceof Number ||
+                value instanceof Boolean || value instanceof Map || value instanceof List) {
+                return value;
+            }
+            if (value instanceof Object[]) {
+                List<Object> list = new ArrayList<Object>();
+                for (Object item : (Object[]) value) {
+                    list.add(toJsonValue(item));
+                }
+                return list;
+            }
+            return value.toString();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.apigee.callout.jwt_encrypted;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.apigee.flow.message.MessageContext;
+
+/*
+ * Diagnostics
+ *
+ * What a policy reports to its DiagnosticsSink, from these properties:
+ *
+ *   debug                   - true sets the default level to debug.
+ *   diagnostics-level       - off, error (stack traces) or debug (everything).
+ *                             The default is off, unless debug is true.
+ *   diagnostics-sample-rate - the fraction of events to report, from 0 to 1.
+ *                             The default is 1.
+ *   diagnostics-sink        - the class name of a DiagnosticsSink. The default
+ *                             sets context variables.
+ *
+ * A value that is not valid leaves the default.
+ *
+ * The callouts ask wantsError() or wantsDebug() before they build anything
+ * to report, so with diagnostics off, the default, reporting costs a field
+ * comparison and allocates nothing.
+ *
+ */
+final class Diagnostics {
+    enum Level { OFF, ERROR, DEBUG }
+
+    static final Diagnostics OFF = new Diagnostics(Level.OFF, 1.0, VariablesSink.INSTANCE);
+
+    // one instance of each sink class, shared by the policies that name it
+    private static final ConcurrentMap<String,DiagnosticsSink> sinks =
+        new ConcurrentHashMap<String,DiagnosticsSink>();
+
+    final Level level;
+    final double sampleRate;
+    final DiagnosticsSink sink;
+
+    private Diagnostics(Level level, double sampleRate, DiagnosticsSink sink) {
+        this.level = level;
+        this.sampleRate = sampleRate;
+        this.sink = sink;
+    }
+
+    static Diagnostics from(Map<String,String> properties) {
+        String value = properties.get("debug");
+        Level level = (value != null && value.trim().equalsIgnoreCase("true")) ? Level.DEBUG : Level.OFF;
+        value = properties.get("diagnostics-level");
+        if (value != null) {
+            try {
+                level = Level.valueOf(value.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                // leave the default
+            }
+        }
+        if (level == Level.OFF) {
+            return OFF;
+        }
+
+        double sampleRate = 1.0;
+        value = properties.get("diagnostics-sample-rate");
+        if (value != null) {
+            try {
+                sampleRate = Math.max(0.0, Math.min(1.0, Double.parseDouble(value.trim())));
+            }
+            catch (NumberFormatException e) {
+                // leave the default
+            }
+        }
+        return new Diagnostics(level, sampleRate, getSink(properties.get("diagnostics-sink")));
+    }
+
+    private static DiagnosticsSink getSink(String className) {
+        if (className == null || className.trim().equals("") || className.trim().equals("variables")) {
+            return VariablesSink.INSTANCE;
+        }
+        className = className.trim();
+        DiagnosticsSink sink = sinks.get(className);
+        if (sink == null) {
+            try {
+                sink = (DiagnosticsSink) Class.forName(className).newInstance();
+            }
+            catch (Exception | LinkageError e) {
+                // leave the default
+                return VariablesSink.INSTANCE;
+            }
+            DiagnosticsSink existing = sinks.putIfAbsent(className, sink);
+            if (existing != null) {
+                sink = existing;
+            }
+        }
+        return sink;
+    }
+
+    private boolean sampled() {
+        return sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    boolean wantsError() {
+        return level != Level.OFF && sampled();
+    }
+
+    boolean wantsDebug() {
+        return level == Level.DEBUG && sampled();
+    }
+
+    void error(MessageContext msgCtxt, String name, Throwable error) {
+        sink.error(msgCtxt, name, error);
+    }
+
+    void debug(MessageContext msgCtxt, String name, String value) {
+        sink.debug(msgCtxt, name, value);
+    }
+
+    // the default: each event into the context variable of the same name
+    static final class VariablesSink implements DiagnosticsSink {
+        static final VariablesSink INSTANCE = new VariablesSink();
+
+        public void error(MessageContext msgCtxt, String name, Throwable error) {
+            msgCtxt.setVariable(name, ExceptionUtils.getStackTrace(error));
+        }
+
+        public void debug(MessageContext msgCtxt, String name, String value) {
+            msgCtxt.setVariable(name, value);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.apigee.callout.jwt_encrypted;
+
+import com.apigee.flow.message.MessageContext;
+
+/*
+ * DiagnosticsSink
+ *
+ * Where the callouts send their diagnostics, like the stack trace of an
+ * exception. By default these go into context variables. To send them
+ * somewhere else, a log for example, name a class that implements this
+ * interface, and has a public no-argument constructor, in the
+ * diagnostics-sink property. One instance of that class serves every
+ * policy that names it, on many threads at once.
+ *
+ * The name of an event is the name of the context variable the default
+ * sink would set, like jwt_stacktrace.
+ *
+ */
+public interface DiagnosticsSink {
+    void error(MessageContext msgCtxt, String name, Throwable error);
+
+    void debug(MessageContext msgCtxt, String name, String value);
+}
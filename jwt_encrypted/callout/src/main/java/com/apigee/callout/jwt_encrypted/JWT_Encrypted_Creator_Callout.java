@@ -3,10 +3,10 @@ package com.apigee.callout.jwt_encrypted;
 import java.io.IOException;
 import java.io.InputStream;
 
+import java.security.Key;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
@@ -16,11 +16,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.UUID;
 
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
-
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.lang.exception.ExceptionUtils;
 
 import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
 import org.jose4j.jwe.JsonWebEncryption;
@@ -32,10 +28,10 @@ import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
 
-import sun.misc.BASE64Encoder;
-
 public class JWT_Encrypted_Creator_Callout implements Execution {
     private Map<String,String> properties; // read-only
+    private final Diagnostics diagnostics;
+    private final ClaimsTemplate claimsTemplate;
 
     public JWT_Encrypted_Creator_Callout (Map properties) {
         // convert the untyped Map to a generic map
@@ -49,6 +45,8 @@ public class JWT_Encrypted_Creator_Callout implements Execution {
             }
         }
         this.properties = m;
+        this.diagnostics = Diagnostics.from(m);
+        this.claimsTemplate = ClaimsTemplate.compile(m);
     }
 
 
@@ -116,13 +114,7 @@ public class JWT_Encrypted_Creator_Callout implements Execution {
 
 
 
-    private PublicKey getPublicKey(MessageContext msgCtxt)
-    // GeneralSecurityException,
-        throws IOException,
-               NoSuchAlgorithmException,
-               InvalidKeySpecException
-    {
-        byte[] keyBytes = null;
+    private PublicKey getPublicKey(MessageContext msgCtxt) throws Exception {
         String publicKey = (String) this.properties.get("public-key");
         if (publicKey==null) {
             String pemfile = (String) this.properties.get("pemfile");
@@ -134,26 +126,41 @@ public class JWT_Encrypted_Creator_Callout implements Execution {
                 throw new IllegalStateException("pemfile resolves to nothing; invalid when algorithm is RS*");
             }
 
-            InputStream in = getResourceAsStream(pemfile);
-
-            keyBytes = new byte[in.available()];
-            in.read(keyBytes);
-            in.close();
+            // the resource in the jar does not change, so skip reading it too
+            final String resourceName = pemfile;
+            return (PublicKey) KeyCache.get("pemfile", resourceName, null, new KeyCache.Loader() {
+                    public Key load() throws Exception {
+                        InputStream in = getResourceAsStream(resourceName);
+                        byte[] keyBytes = new byte[in.available()];
+                        in.read(keyBytes);
+                        in.close();
+                        return parsePublicKey(new String(keyBytes, "UTF-8"));
+                    }
+                });
+        }
+
+        if (publicKey.equals("")) {
+            throw new IllegalStateException("public-key must be non-empty");
+        }
+        publicKey = resolvePropertyValue(publicKey, msgCtxt);
+        if (publicKey==null || publicKey.equals("")) {
+            throw new IllegalStateException("public-key variable resolves to empty; invalid when algorithm is RS*");
+        }
+        final String pem = publicKey;
+        return (PublicKey) KeyCache.get("public-key", pem, null, new KeyCache.Loader() {
+                public Key load() throws Exception {
+                    return parsePublicKey(pem);
+                }
+            });
+    }
 
-            publicKey = new String(keyBytes, "UTF-8");
-        }
-        else {
-            if (publicKey.equals("")) {
-                throw new IllegalStateException("public-key must be non-empty");
-            }
-            publicKey = resolvePropertyValue(publicKey, msgCtxt);
-            if (publicKey==null || publicKey.equals("")) {
-                throw new IllegalStateException("public-key variable resolves to empty; invalid when algorithm is RS*");
-            }
-        }
 
+    private static PublicKey parsePublicKey(String publicKey)
+        throws NoSuchAlgorithmException,
+               InvalidKeySpecException
+    {
         publicKey = getCleanEncodedKeyString(publicKey);
-        keyBytes = Base64.decodeBase64(publicKey);
+        byte[] keyBytes = Base64.decodeBase64(publicKey);
         X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
         KeyFactory keyFactory = KeyFactory.getInstance("RSA");
         PublicKey key = keyFactory.generatePublic(spec);
@@ -196,6 +203,9 @@ public class JWT_Encrypted_Creator_Callout implements Execution {
         try {
             //JWTClaimsSet claims = new JWTClaimsSet();
             JwtClaims claims = new JwtClaims();
+            // the json-payload, subject and claim_* properties
+            claimsTemplate.apply(claims, msgCtxt);
+
             String ISSUER = getIssuer(msgCtxt);
             claims.setIssuer(ISSUER);
             Float expirationInMinutes = Float.valueOf(getExpirationInMinutes(msgCtxt));
@@ -203,40 +213,28 @@ public class JWT_Encrypted_Creator_Callout implements Execution {
             String uniqueID = UUID.randomUUID().toString();
             claims.setJwtId(uniqueID);
 
-            /***************************SENDER'S END ***********************************/
-            claims.setSubject("users");
-            claims.setClaim("email", "users@test.com");
-            claims.setClaim("Country", "USA");
-            claims.setClaim("active", "true");
-            claims.setClaim("dealerId", "1234");
-            claims.setClaim("url", "www.mycompany.com");
-
             RSAPublicKey publicKey = (RSAPublicKey) getPublicKey(msgCtxt);
-            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-            keyGen.init(256);
-            SecretKey contentEncryptKey = keyGen.generateKey();
+            // A128CBC-HS256 takes a 256-bit key
+            byte[] contentEncryptKey = Randomness.nextBytes(32);
 
             JsonWebEncryption jwe = new JsonWebEncryption();
             jwe.setKey(publicKey);
             jwe.setPayload(claims.toJson());
             jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.RSA_OAEP_256);
-            jwe.setContentEncryptionKey(contentEncryptKey.getEncoded());
+            jwe.setContentEncryptionKey(contentEncryptKey);
             jwe.setEncryptionMethodHeaderParameter(ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256);
-            SecureRandom iv = SecureRandom.getInstance("SHA1PRNG");
-            jwe.setIv(iv.generateSeed(16));
+            jwe.setIv(Randomness.nextBytes(16));
             String encryptedJwt = jwe.getCompactSerialization();
-            System.out.println("Encrypted ::" + encryptedJwt);
             varName = getVarname("encryptedJwt");
             msgCtxt.setVariable(varName, encryptedJwt);
         }
 
         catch (Exception e) {
-            //e.printStackTrace();
             varName = getVarname( "error");
             msgCtxt.setVariable(varName, "Exception (A): " + e.toString());
-            System.out.println("exception: " + e.toString());
-            varName = getVarname("stacktrace");
-            msgCtxt.setVariable(varName, "Stack (A): " + ExceptionUtils.getStackTrace(e));
+            if (diagnostics.wantsError()) {
+                diagnostics.error(msgCtxt, getVarname("stacktrace"), e);
+            }
             return ExecutionResult.ABORT;
         }
         return ExecutionResult.SUCCESS;
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -13,9 +14,9 @@ import java.security.spec.PKCS8EncodedKeySpec;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.ssl.PKCS8Key;
 
 import org.jose4j.jwt.JwtClaims;
@@ -27,10 +28,21 @@ import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
 
-import sun.misc.BASE64Encoder;
-
 public class JWT_Encrypted_Validator_Callout implements Execution {
+    private static final int MAX_CONSUMERS = 64;
+
+    // A JwtConsumer is immutable once built, so one can serve every request
+    // with the same decryption key and the same expectations. The keys come
+    // from KeyCache, so the same key is the same object, request after request.
+    private static final Map<ConsumerSpec,JwtConsumer> consumers =
+        new LinkedHashMap<ConsumerSpec,JwtConsumer>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<ConsumerSpec,JwtConsumer> eldest) {
+                return size() > MAX_CONSUMERS;
+            }
+        };
+
     private Map<String,String> properties; // read-only
+    private final Diagnostics diagnostics;
 
     public JWT_Encrypted_Validator_Callout (Map properties) {
         // convert the untyped Map to a generic map
@@ -44,6 +56,7 @@ public class JWT_Encrypted_Validator_Callout implements Execution {
             }
         }
         this.properties = m;
+        this.diagnostics = Diagnostics.from(m);
     }
 
 
@@ -113,16 +126,10 @@ public class JWT_Encrypted_Validator_Callout implements Execution {
         return password;
     }
 
-    private PrivateKey getPrivateKey(MessageContext msgCtxt)
-            throws IOException,
-                   GeneralSecurityException,
-                   NoSuchAlgorithmException,
-                   InvalidKeySpecException
-    {
-        byte[] keyBytes = null;
+    private PrivateKey getPrivateKey(MessageContext msgCtxt) throws Exception {
         String privateKey = (String) this.properties.get("private-key");
         //String privateKey = msgCtxt.getVariable("privateKeyFromVault");
-        String passwd = getPrivateKeyPassword(msgCtxt);
+        final String passwd = getPrivateKeyPassword(msgCtxt);
         if (privateKey==null) {
             String pemfile = (String) this.properties.get("pemfile");
             if (pemfile == null || pemfile.equals("")) {
@@ -133,33 +140,48 @@ public class JWT_Encrypted_Validator_Callout implements Execution {
                 throw new IllegalStateException("pemfile resolves to nothing; invalid when algorithm is RS*");
             }
 
-            InputStream in = getResourceAsStream(pemfile);
+            // the resource in the jar does not change, so skip reading it too
+            final String resourceName = pemfile;
+            return (PrivateKey) KeyCache.get("pemfile", resourceName, passwd, new KeyCache.Loader() {
+                    public Key load() throws Exception {
+                        InputStream in = getResourceAsStream(resourceName);
+                        byte[] keyBytes = new byte[in.available()];
+                        in.read(keyBytes);
+                        in.close();
+                        return parsePrivateKey(keyBytes, passwd);
+                    }
+                });
+        }
 
-            keyBytes = new byte[in.available()];
-            in.read(keyBytes);
-            in.close();
+        if (privateKey.equals("")) {
+            throw new IllegalStateException("private-key must be non-empty");
         }
-        else {
-            if (privateKey.equals("")) {
-                throw new IllegalStateException("private-key must be non-empty");
-            }
-            privateKey = resolvePropertyValue(privateKey, msgCtxt);
-            if (privateKey==null || privateKey.equals("")) {
-                throw new IllegalStateException("private-key variable resolves to empty; invalid when algorithm is RS*");
-            }
-            privateKey = privateKey.trim();
-            // clear any leading whitespace on each line
-            privateKey = privateKey.replaceAll("([\\r|\\n] +)","\n");
-            // replace pipe characters with newline
-            privateKey = privateKey.replaceAll("\\|","\n");
-            msgCtxt.setVariable("post-processed-privkey", privateKey);
-            keyBytes = privateKey.getBytes(Charset.forName("UTF-8"));
+        privateKey = resolvePropertyValue(privateKey, msgCtxt);
+        if (privateKey==null || privateKey.equals("")) {
+            throw new IllegalStateException("private-key variable resolves to empty; invalid when algorithm is RS*");
         }
+        privateKey = privateKey.trim();
+        // clear any leading whitespace on each line
+        privateKey = privateKey.replaceAll("([\\r|\\n] +)","\n");
+        // replace pipe characters with newline
+        privateKey = privateKey.replaceAll("\\|","\n");
+        final byte[] keyBytes = privateKey.getBytes(Charset.forName("UTF-8"));
+        return (PrivateKey) KeyCache.get("private-key", privateKey, passwd, new KeyCache.Loader() {
+                public Key load() throws Exception {
+                    return parsePrivateKey(keyBytes, passwd);
+                }
+            });
+    }
 
+    private static PrivateKey parsePrivateKey(byte[] keyBytes, String passwd)
+            throws GeneralSecurityException,
+                   NoSuchAlgorithmException,
+                   InvalidKeySpecException
+    {
         // If the provided data is encrypted, we need a password to decrypt
         // it. If the InputStream is not encrypted, then the password is ignored
         // (can be null).  The InputStream can be DER (raw ASN.1) or PEM (base64).
-        PKCS8Key pkcs8 = new PKCS8Key( keyBytes, passwd.toCharArray() );
+        PKCS8Key pkcs8 = new PKCS8Key( keyBytes, (passwd == null) ? null : passwd.toCharArray() );
 
         // If an unencrypted PKCS8 key was provided, then getDecryptedBytes()
         // actually returns exactly what was originally passed in (with no
@@ -180,6 +202,106 @@ public class JWT_Encrypted_Validator_Callout implements Execution {
     }
 
 
+    private String getOptionalProperty(String name, MessageContext msgCtxt) {
+        String value = (String) this.properties.get(name);
+        if (value == null || value.trim().equals("")) {
+            return null;
+        }
+        value = resolvePropertyValue(value.trim(), msgCtxt);
+        if (value == null || value.trim().equals("")) {
+            return null;
+        }
+        return value.trim();
+    }
+
+    private boolean getBooleanProperty(String name, MessageContext msgCtxt) {
+        String value = getOptionalProperty(name, msgCtxt);
+        return (value != null) && Boolean.parseBoolean(value);
+    }
+
+    // What the consumer expects of the claims, from the properties.
+    private static final class ConsumerSpec {
+        final PrivateKey decryptionKey;
+        final String expectedAudience; // comma-separated, or null
+        final String expectedIssuer;
+        final boolean requireExpirationTime;
+        final boolean requireSubject;
+
+        ConsumerSpec(PrivateKey decryptionKey, String expectedAudience, String expectedIssuer,
+                     boolean requireExpirationTime, boolean requireSubject) {
+            this.decryptionKey = decryptionKey;
+            this.expectedAudience = expectedAudience;
+            this.expectedIssuer = expectedIssuer;
+            this.requireExpirationTime = requireExpirationTime;
+            this.requireSubject = requireSubject;
+        }
+
+        JwtConsumer build() {
+            JwtConsumerBuilder builder = new JwtConsumerBuilder()
+                .setDecryptionKey(decryptionKey)
+                .setDisableRequireSignature();
+            if (expectedAudience != null) {
+                builder.setExpectedAudience(expectedAudience.split("\\s*,\\s*"));
+            }
+            if (expectedIssuer != null) {
+                builder.setExpectedIssuer(expectedIssuer);
+            }
+            if (requireExpirationTime) {
+                builder.setRequireExpirationTime();
+            }
+            if (requireSubject) {
+                builder.setRequireSubject();
+            }
+            return builder.build();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConsumerSpec)) {
+                return false;
+            }
+            ConsumerSpec other = (ConsumerSpec) o;
+            return decryptionKey == other.decryptionKey &&
+                equal(expectedAudience, other.expectedAudience) &&
+                equal(expectedIssuer, other.expectedIssuer) &&
+                requireExpirationTime == other.requireExpirationTime &&
+                requireSubject == other.requireSubject;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = System.identityHashCode(decryptionKey);
+            h = 31 * h + ((expectedAudience == null) ? 0 : expectedAudience.hashCode());
+            h = 31 * h + ((expectedIssuer == null) ? 0 : expectedIssuer.hashCode());
+            h = 31 * h + (requireExpirationTime ? 1 : 0);
+            return 31 * h + (requireSubject ? 1 : 0);
+        }
+
+        private static boolean equal(String a, String b) {
+            return (a == null) ? (b == null) : a.equals(b);
+        }
+    }
+
+    private JwtConsumer getConsumer(PrivateKey privateKey, MessageContext msgCtxt) {
+        ConsumerSpec spec = new ConsumerSpec(privateKey,
+                                             getOptionalProperty("expected-audience", msgCtxt),
+                                             getOptionalProperty("expected-issuer", msgCtxt),
+                                             getBooleanProperty("require-expiration-time", msgCtxt),
+                                             getBooleanProperty("require-subject", msgCtxt));
+        JwtConsumer consumer;
+        synchronized (consumers) {
+            consumer = consumers.get(spec);
+        }
+        if (consumer == null) {
+            consumer = spec.build();
+            synchronized (consumers) {
+                consumers.put(spec, consumer);
+            }
+        }
+        return consumer;
+    }
+
+
     public ExecutionResult execute (MessageContext msgCtxt,
             ExecutionContext exeCtxt) {
         String varName;
@@ -190,34 +312,25 @@ public class JWT_Encrypted_Validator_Callout implements Execution {
             varName = getVarname("jwt");
             msgCtxt.setVariable(varName, encryptedJwt);
 
-            RSAPrivateKey privateKey = (RSAPrivateKey) getPrivateKey(msgCtxt);
-            BASE64Encoder b64 = new BASE64Encoder();
-            varName = getVarname("PrivateKey");
-            msgCtxt.setVariable(varName, b64.encode(privateKey.getEncoded()));
+            PrivateKey privateKey = getPrivateKey(msgCtxt);
+            if (!(privateKey instanceof RSAPrivateKey)) {
+                throw new IllegalStateException("the private key is not an RSA key.");
+            }
 
             /***************************RECEIVER'S END ***********************************/
 
-            JwtConsumer consumer = new JwtConsumerBuilder()
-                //.setExpectedAudience("Admins")
-                //.setExpectedIssuer("CA")
-                //.setRequireSubject()
-                //.setRequireExpirationTime()
-                .setDecryptionKey(privateKey)
-                .setDisableRequireSignature()
-                .build();
-            JwtClaims receivedClaims = consumer.processToClaims(encryptedJwt);
-            //System.out.println("SUCESS :: JWT Validation :: " + receivedClaims);
+            JwtClaims receivedClaims = getConsumer(privateKey, msgCtxt).processToClaims(encryptedJwt);
             String receivedClaimsJSON = receivedClaims.getRawJson();
 
             varName = getVarname("receivedClaims");
             msgCtxt.setVariable(varName, receivedClaimsJSON);
         }
         catch (Exception e) {
-            //e.printStackTrace();
             varName = getVarname("error");
             msgCtxt.setVariable(varName, "Exception (A): " + e.toString());
-            varName = getVarname("stacktrace");
-            msgCtxt.setVariable(varName, "Stack (A): " + ExceptionUtils.getStackTrace(e));
+            if (diagnostics.wantsError()) {
+                diagnostics.error(msgCtxt, getVarname("stacktrace"), e);
+            }
         }
         return ExecutionResult.SUCCESS;
 
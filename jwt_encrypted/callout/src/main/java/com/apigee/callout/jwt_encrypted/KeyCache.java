@@ -0,0 +1,107 @@
+package com.apigee.callout.jwt_encrypted;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+
+/*
+ * KeyCache
+ *
+ * The RSA keys the callouts build from their public-key, private-key and
+ * pemfile properties. Reading a private key means cleaning up the PEM,
+ * decrypting it with the password, and handing the result to a KeyFactory,
+ * and that costs more than decrypting the JWT itself. The same few keys
+ * arrive on every request, so the ready Key objects are kept here, shared
+ * by all the policy instances in the JVM, in a bounded LRU map.
+ *
+ * The map is keyed on a SHA-256 digest of the kind of key, the material it
+ * came from, and the password, so no key or password is held as a map
+ * key, and a wrong password still fails. Entries expire after a while, so
+ * that a key rotated in place, in a resource or in the vault, is picked up
+ * without a restart.
+ *
+ */
+final class KeyCache {
+    private static final int MAX_KEYS = 128;
+    private static final long LIFETIME_MILLIS = 10 * 60 * 1000L;
+
+    private static final Map<String,Entry> keys = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+
+    private static final class Entry {
+        final Key key;
+        final long expiresAtMillis;
+        Entry(Key key, long expiresAtMillis) {
+            this.key = key;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    interface Loader {
+        // may return null, which is not cached
+        Key load() throws Exception;
+    }
+
+    private KeyCache() {}
+
+    static Key get(String kind, String material, String password, Loader loader) throws Exception {
+        String digest = digest(kind, material, password);
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (keys) {
+            entry = keys.get(digest);
+            if (entry != null && now >= entry.expiresAtMillis) {
+                keys.remove(digest);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            return entry.key;
+        }
+        // load outside the lock; two threads may race to load the same key, harmlessly
+        Key key = loader.load();
+        if (key != null) {
+            synchronized (keys) {
+                keys.put(digest, new Entry(key, now + LIFETIME_MILLIS));
+            }
+        }
+        return key;
+    }
+
+    static int size() {
+        synchronized (keys) {
+            return keys.size();
+        }
+    }
+
+    static void clear() {
+        synchronized (keys) {
+            keys.clear();
+        }
+    }
+
+    private static String digest(String kind, String material, String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(kind.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(material.getBytes(StandardCharsets.UTF_8));
+            if (password != null) {
+                md.update((byte) 0);
+                md.update(password.getBytes(StandardCharsets.UTF_8));
+            }
+            return Hex.encodeHexString(md.digest());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.apigee.callout.jwt_encrypted;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Randomness
+ *
+ * The random bytes for content encryption keys and IVs, from a fixed set of
+ * SHA1PRNG generators. Each request picks one at random, so threads rarely
+ * contend for the same lock, and no request waits on the system entropy
+ * source: SecureRandom.generateSeed() and the self-seeding of a new SHA1PRNG
+ * can both block, on /dev/random, when the kernel thinks it is short of
+ * entropy.
+ *
+ * Instead, each generator is seeded explicitly, before its first use, from
+ * the non-blocking native source (/dev/urandom), and reseeded from there
+ * after every RESEED_INTERVAL requests.
+ *
+ * The set is a plain array rather than a ThreadLocal, which would pin the
+ * callout's classloader to the container's pooled threads.
+ *
+ */
+final class Randomness {
+    private static final int SEED_BYTES = 32;
+    private static final int RESEED_INTERVAL = 1 << 16;
+    private static final int GENERATORS = 16;
+
+    private static final SecureRandom seedSource = newSeedSource();
+
+    private static final Generator[] generators = newGenerators();
+
+    private static final class Generator {
+        private final SecureRandom random;
+        private int uses;
+
+        Generator() {
+            try {
+                random = SecureRandom.getInstance("SHA1PRNG");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            // setting the seed before the first nextBytes keeps SHA1PRNG from seeding itself
+            random.setSeed(seed());
+        }
+
+        synchronized void nextBytes(byte[] bytes) {
+            if (++uses > RESEED_INTERVAL) {
+                // adds to the state, rather than replacing it
+                random.setSeed(seed());
+                uses = 1;
+            }
+            random.nextBytes(bytes);
+        }
+    }
+
+    private Randomness() {}
+
+    static byte[] nextBytes(int length) {
+        byte[] bytes = new byte[length];
+        generators[ThreadLocalRandom.current().nextInt(GENERATORS)].nextBytes(bytes);
+        return bytes;
+    }
+
+    private static Generator[] newGenerators() {
+        Generator[] g = new Generator[GENERATORS];
+        for (int i = 0; i < g.length; i++) {
+            g[i] = new Generator();
+        }
+        return g;
+    }
+
+    private static SecureRandom newSeedSource() {
+        try {
+            // reads /dev/urandom; available on Linux and the other Unixes
+            return SecureRandom.getInstance("NativePRNGNonBlocking");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // elsewhere, the default, which on Windows does not block either
+            return new SecureRandom();
+        }
+    }
+
+    private static byte[] seed() {
+        byte[] seed = new byte[SEED_BYTES];
+        seedSource.nextBytes(seed);
+        return seed;
+    }
+}
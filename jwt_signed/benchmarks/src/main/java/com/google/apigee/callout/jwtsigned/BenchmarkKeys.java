@@ -0,0 +1,66 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callout.jwtsigned;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import org.bouncycastle.asn1.ASN1Encodable;
+
+/*
+ * BenchmarkKeys
+ *
+ * Key material for the benchmarks, generated once per JVM. The private key
+ * is written as a PKCS#1 "RSA PRIVATE KEY" PEM, the form SignerCallout
+ * reads, and the public key as a "PUBLIC KEY" PEM, the form VerifierCallout
+ * reads.
+ *
+ */
+final class BenchmarkKeys {
+  static final String SECRET_KEY = "ABCDEFGH12345678_ABCDEFGH12345678_ABCDEFGH12345678";
+  static final String PRIVATE_KEY_PEM;
+  static final String PUBLIC_KEY_PEM;
+
+  static {
+    try {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(2048);
+      KeyPair keyPair = generator.generateKeyPair();
+      ASN1Encodable rsaPrivateKey =
+          org.bouncycastle.asn1.pkcs.PrivateKeyInfo.getInstance(
+                  keyPair.getPrivate().getEncoded())
+              .parsePrivateKey();
+      PRIVATE_KEY_PEM =
+          toPem("RSA PRIVATE KEY", rsaPrivateKey.toASN1Primitive().getEncoded());
+      PUBLIC_KEY_PEM = toPem("PUBLIC KEY", keyPair.getPublic().getEncoded());
+    } catch (Exception e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private BenchmarkKeys() {}
+
+  private static String toPem(String type, byte[] der) {
+    return "-----BEGIN "
+        + type
+        + "-----\n"
+        + Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der)
+        + "\n-----END "
+        + type
+        + "-----\n";
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.message.MessageContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * InMemoryMessageContext
+ *
+ * A MessageContext for running the callouts outside of Edge. Only the
+ * variable methods, which are all the callouts use, are backed, by a
+ * HashMap; anything else throws. It is a dynamic proxy rather than a class
+ * that implements the interface, so that it does not depend on the exact
+ * set of methods in the version of message-flow.jar on the classpath.
+ *
+ */
+final class InMemoryMessageContext implements InvocationHandler {
+  private final Map<String, Object> variables = new HashMap<String, Object>();
+
+  private InMemoryMessageContext() {}
+
+  static MessageContext create() {
+    return (MessageContext)
+        Proxy.newProxyInstance(
+            MessageContext.class.getClassLoader(),
+            new Class<?>[] {MessageContext.class},
+            new InMemoryMessageContext());
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "getVariable":
+        return variables.get((String) args[0]);
+      case "setVariable":
+        variables.put((String) args[0], args[1]);
+        return true;
+      case "removeVariable":
+        return variables.remove((String) args[0]) != null;
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return "InMemoryMessageContext" + variables.keySet();
+      default:
+        throw new UnsupportedOperationException(method.getName());
+    }
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * JwsBenchmark
+ *
+ * Measures JwsCreatorCallout and JwsVerifierCallout for payloads of
+ * different sizes. The JWS callouts handle HS256 and RS256 only. The
+ * caches are always warm here; JwtBenchmark covers cold starts.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwsBenchmark {
+
+  @Param({"HS256", "RS256"})
+  public String algorithm;
+
+  @Param({"64", "1024", "16384"})
+  public int payloadSize;
+
+  private JwsCreatorCallout creator;
+  private JwsVerifierCallout verifier;
+  private MessageContext msgCtxt;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    StringBuilder payload = new StringBuilder();
+    while (payload.length() < payloadSize) {
+      payload.append("The quick brown fox jumps over the lazy dog. ");
+    }
+    payload.setLength(payloadSize);
+
+    Map<String, String> creatorProperties = new HashMap<String, String>();
+    creatorProperties.put("algorithm", algorithm);
+    creatorProperties.put("payload", payload.toString());
+    Map<String, String> verifierProperties = new HashMap<String, String>();
+    verifierProperties.put("algorithm", algorithm);
+    verifierProperties.put("jws", "{benchmark.jws}");
+    if (algorithm.equals("HS256")) {
+      creatorProperties.put("secret-key", BenchmarkKeys.SECRET_KEY);
+      verifierProperties.put("secret-key", BenchmarkKeys.SECRET_KEY);
+    } else {
+      creatorProperties.put("private-key", BenchmarkKeys.PRIVATE_KEY_PEM);
+      verifierProperties.put("public-key", BenchmarkKeys.PUBLIC_KEY_PEM);
+    }
+
+    creator = new JwsCreatorCallout(creatorProperties);
+    verifier = new JwsVerifierCallout(verifierProperties);
+    msgCtxt = InMemoryMessageContext.create();
+    if (creator.execute(msgCtxt, null) != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException("setup: create did not succeed");
+    }
+    msgCtxt.setVariable("benchmark.jws", msgCtxt.getVariable("jws_jws"));
+    if (verifier.execute(msgCtxt, null) != ExecutionResult.SUCCESS
+        || !"true".equals(msgCtxt.getVariable("jws_isValid"))) {
+      throw new IllegalStateException("setup: " + msgCtxt.getVariable("jws_reason"));
+    }
+  }
+
+  @Benchmark
+  public ExecutionResult create() {
+    return creator.execute(msgCtxt, null);
+  }
+
+  @Benchmark
+  public ExecutionResult verify() {
+    return verifier.execute(msgCtxt, null);
+  }
+}
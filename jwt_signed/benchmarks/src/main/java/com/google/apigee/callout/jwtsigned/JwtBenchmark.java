@@ -0,0 +1,146 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * JwtBenchmark
+ *
+ * Measures JwtCreatorCallout and JwtVerifierCallout end to end, through
+ * execute(), for each algorithm and for JWTs with more and larger claims.
+ *
+ * With caches=warm, one callout instance serves every invocation, as on a
+ * busy message processor, so the keys come from the KeyRegistry. With
+ * caches=cold, each invocation constructs a new callout and starts with an
+ * empty KeyRegistry, as for the first request after a deployment. With
+ * caches=verified, the verifier also sets cache-verified-tokens, so that
+ * repeated verification of the one token is a cache hit.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtBenchmark {
+
+  @Param({"HS256", "RS256", "PS256"})
+  public String algorithm;
+
+  @Param({"0", "8", "32"})
+  public int claimCount;
+
+  @Param({"16", "256"})
+  public int claimSize;
+
+  @Param({"warm", "cold", "verified"})
+  public String caches;
+
+  private Map<String, String> creatorProperties;
+  private Map<String, String> verifierProperties;
+  private JwtCreatorCallout creator;
+  private JwtVerifierCallout verifier;
+  private MessageContext msgCtxt;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    creatorProperties = new HashMap<String, String>();
+    creatorProperties.put("algorithm", algorithm);
+    creatorProperties.put("issuer", "urn:benchmark");
+    creatorProperties.put("subject", "benchmark-subject");
+    creatorProperties.put("audience", "urn:benchmark-audience");
+    creatorProperties.put("expiresIn", "3600");
+    StringBuilder value = new StringBuilder();
+    while (value.length() < claimSize) {
+      value.append("0123456789abcdef");
+    }
+    value.setLength(claimSize);
+    for (int i = 0; i < claimCount; i++) {
+      creatorProperties.put("claim_c" + i, value.toString());
+    }
+
+    verifierProperties = new HashMap<String, String>();
+    verifierProperties.put("algorithm", algorithm);
+    verifierProperties.put("jwt", "{benchmark.jwt}");
+    verifierProperties.put("claim_iss", "urn:benchmark");
+    verifierProperties.put("claim_aud", "urn:benchmark-audience");
+    if (caches.equals("verified")) {
+      verifierProperties.put("cache-verified-tokens", "true");
+    }
+
+    if (algorithm.equals("HS256")) {
+      creatorProperties.put("secret-key", BenchmarkKeys.SECRET_KEY);
+      verifierProperties.put("secret-key", BenchmarkKeys.SECRET_KEY);
+    } else {
+      creatorProperties.put("private-key", BenchmarkKeys.PRIVATE_KEY_PEM);
+      verifierProperties.put("public-key", BenchmarkKeys.PUBLIC_KEY_PEM);
+    }
+
+    creator = new JwtCreatorCallout(creatorProperties);
+    verifier = new JwtVerifierCallout(verifierProperties);
+    msgCtxt = InMemoryMessageContext.create();
+    check(creator.execute(msgCtxt, null), "create");
+    msgCtxt.setVariable("benchmark.jwt", msgCtxt.getVariable("jwt_jwt"));
+    check(verifier.execute(msgCtxt, null), "verify");
+    if (!"true".equals(msgCtxt.getVariable("jwt_isValid"))) {
+      throw new IllegalStateException("setup: " + msgCtxt.getVariable("jwt_reason"));
+    }
+  }
+
+  private static void check(ExecutionResult result, String label) {
+    if (result != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException("setup: " + label + " did not succeed");
+    }
+  }
+
+  private boolean isCold() {
+    if (caches.equals("cold")) {
+      KeyRegistry.getDefault().clear();
+      return true;
+    }
+    return false;
+  }
+
+  @Benchmark
+  public ExecutionResult create() {
+    JwtCreatorCallout callout = isCold() ? new JwtCreatorCallout(creatorProperties) : creator;
+    return callout.execute(msgCtxt, null);
+  }
+
+  @Benchmark
+  public ExecutionResult verify() {
+    JwtVerifierCallout callout = isCold() ? new JwtVerifierCallout(verifierProperties) : verifier;
+    return callout.execute(msgCtxt, null);
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.nimbusds.jose.util.Base64URL;
+import java.text.ParseException;
+import java.util.Arrays;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+
+/*
+ * CompactToken
+ *
+ * A compact JWS (or JWT), as header.payload.signature. Parsing finds the two
+ * dots and nothing else; each part is decoded from the original string only
+ * when asked for, straight from base64url into bytes, without the
+ * intermediate Strings and Base64URL wrappers that JWSObject.parse creates.
+ * The signing input is likewise copied once, from the string into the byte
+ * array the verifier needs.
+ *
+ */
+final class CompactToken {
+  // the same options Nimbus uses in JSONObjectUtils
+  private static final int JSON_PARSER_MODE =
+      JSONParser.USE_HI_PRECISION_FLOAT | JSONParser.ACCEPT_TAILLING_SPACE;
+
+  private static final byte[] BASE64URL_VALUES = new byte[128];
+
+  static {
+    Arrays.fill(BASE64URL_VALUES, (byte) -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64URL_VALUES[alphabet.charAt(i)] = (byte) i;
+    }
+  }
+
+  private final String compact;
+  private final int dot1;
+  private final int dot2;
+
+  private CompactToken(String compact, int dot1, int dot2) {
+    this.compact = compact;
+    this.dot1 = dot1;
+    this.dot2 = dot2;
+  }
+
+  public static CompactToken parse(String compact) throws ParseException {
+    int dot1 = compact.indexOf('.');
+    if (dot1 == -1) {
+      throw new ParseException("Invalid serialized JWS object: Missing part delimiters", 0);
+    }
+    int dot2 = compact.indexOf('.', dot1 + 1);
+    if (dot2 == -1) {
+      throw new ParseException("Invalid serialized JWS object: Missing second delimiter", 0);
+    }
+    if (compact.indexOf('.', dot2 + 1) != -1) {
+      throw new ParseException("Unexpected number of Base64URL parts, must be three", 0);
+    }
+    if (dot1 == 0) {
+      throw new ParseException("The header must not be empty", 0);
+    }
+    return new CompactToken(compact, dot1, dot2);
+  }
+
+  public byte[] decodeHeader() throws ParseException {
+    return decode(compact, 0, dot1);
+  }
+
+  public byte[] decodePayload() throws ParseException {
+    return decode(compact, dot1 + 1, dot2);
+  }
+
+  public boolean isPayloadEmpty() {
+    return dot2 == dot1 + 1;
+  }
+
+  public Base64URL getSignature() {
+    return new Base64URL(compact.substring(dot2 + 1));
+  }
+
+  // The ASCII bytes of header.payload, exactly as they appear in the token.
+  // Any other character is rejected, rather than cut to its low byte, so
+  // that the bytes verified are the only reading of the token.
+  public byte[] getSigningInput() throws ParseException {
+    byte[] input = new byte[dot2];
+    for (int i = 0; i < dot2; i++) {
+      input[i] = (i == dot1) ? (byte) '.' : base64urlByte(compact, i);
+    }
+    return input;
+  }
+
+  // the signing input for a token whose payload is detached, and so is not in the token
+  public byte[] getSigningInput(byte[] detachedPayload) throws ParseException {
+    String encodedPayload = Base64URL.encode(detachedPayload).toString();
+    byte[] input = new byte[dot1 + 1 + encodedPayload.length()];
+    for (int i = 0; i < dot1; i++) {
+      input[i] = base64urlByte(compact, i);
+    }
+    input[dot1] = (byte) '.';
+    for (int i = 0; i < encodedPayload.length(); i++) {
+      input[dot1 + 1 + i] = (byte) encodedPayload.charAt(i);
+    }
+    return input;
+  }
+
+  public static JSONObject parseJsonObject(byte[] json) throws ParseException {
+    Object o;
+    try {
+      o = new JSONParser(JSON_PARSER_MODE).parse(json);
+    } catch (net.minidev.json.parser.ParseException e) {
+      throw new ParseException("Invalid JSON: " + e.getMessage(), 0);
+    }
+    if (!(o instanceof JSONObject)) {
+      throw new ParseException("JSON entity is not an object", 0);
+    }
+    return (JSONObject) o;
+  }
+
+  private static byte base64urlByte(String s, int i) throws ParseException {
+    char c = s.charAt(i);
+    if (c >= 128 || BASE64URL_VALUES[c] == -1) {
+      throw new ParseException("Invalid base64url character", i);
+    }
+    return (byte) c;
+  }
+
+  // Decodes the unpadded base64url in s[from, to) into a byte array of exactly the right size.
+  static byte[] decode(String s, int from, int to) throws ParseException {
+    int length = to - from;
+    if (length % 4 == 1) {
+      throw new ParseException("Invalid base64url length", from);
+    }
+    byte[] out = new byte[length / 4 * 3 + Math.max(length % 4 - 1, 0)];
+    int bits = 0;
+    int bitCount = 0;
+    int o = 0;
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      int value = (c < 128) ? BASE64URL_VALUES[c] : -1;
+      if (value == -1) {
+        throw new ParseException("Invalid base64url character", i);
+      }
+      bits = (bits << 6) | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        out[o++] = (byte) (bits >> bitCount);
+      }
+    }
+    return out;
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Diagnostics
+ *
+ * What a policy reports to its DiagnosticsSink, from these properties:
+ *
+ *   diagnostics-level       - off, error (stack traces) or debug (everything).
+ *                             The default is debug if the debug property is
+ *                             true, and off otherwise.
+ *   diagnostics-sample-rate - the fraction of events to report, from 0 to 1.
+ *                             The default is 1.
+ *   diagnostics-sink        - the class name of a DiagnosticsSink. The default
+ *                             sets context variables.
+ *
+ * A value that is not valid leaves the default, as the debug property does.
+ *
+ * The callouts ask wantsError() or wantsDebug() before they build anything
+ * to report, so with diagnostics off, the default, reporting costs a field
+ * comparison and allocates nothing.
+ *
+ */
+final class Diagnostics {
+  enum Level {
+    OFF,
+    ERROR,
+    DEBUG
+  }
+
+  static final Diagnostics OFF = new Diagnostics(Level.OFF, 1.0, VariablesSink.INSTANCE);
+
+  // one instance of each sink class, shared by the policies that name it
+  private static final ConcurrentMap<String, DiagnosticsSink> sinks =
+      new ConcurrentHashMap<String, DiagnosticsSink>();
+
+  final Level level;
+  final double sampleRate;
+  final DiagnosticsSink sink;
+
+  private Diagnostics(Level level, double sampleRate, DiagnosticsSink sink) {
+    this.level = level;
+    this.sampleRate = sampleRate;
+    this.sink = sink;
+  }
+
+  static Diagnostics from(Map<String, String> properties, boolean debug) {
+    Level level = debug ? Level.DEBUG : Level.OFF;
+    String value = properties.get("diagnostics-level");
+    if (value != null) {
+      try {
+        level = Level.valueOf(value.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        // leave the default
+      }
+    }
+    if (level == Level.OFF) {
+      return OFF;
+    }
+
+    double sampleRate = 1.0;
+    value = properties.get("diagnostics-sample-rate");
+    if (value != null) {
+      try {
+        sampleRate = Math.max(0.0, Math.min(1.0, Double.parseDouble(value.trim())));
+      } catch (NumberFormatException e) {
+        // leave the default
+      }
+    }
+    return new Diagnostics(level, sampleRate, getSink(properties.get("diagnostics-sink")));
+  }
+
+  private static DiagnosticsSink getSink(String className) {
+    if (className == null || className.trim().equals("") || className.trim().equals("variables")) {
+      return VariablesSink.INSTANCE;
+    }
+    className = className.trim();
+    DiagnosticsSink sink = sinks.get(className);
+    if (sink == null) {
+      try {
+        sink = (DiagnosticsSink) Class.forName(className).newInstance();
+      } catch (Exception | LinkageError e) {
+        // leave the default
+        return VariablesSink.INSTANCE;
+      }
+      DiagnosticsSink existing = sinks.putIfAbsent(className, sink);
+      if (existing != null) {
+        sink = existing;
+      }
+    }
+    return sink;
+  }
+
+  private boolean sampled() {
+    return sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+  }
+
+  boolean wantsError() {
+    return level != Level.OFF && sampled();
+  }
+
+  boolean wantsDebug() {
+    return level == Level.DEBUG && sampled();
+  }
+
+  void error(MessageContext msgCtxt, String name, Throwable error) {
+    sink.error(msgCtxt, name, error);
+  }
+
+  void debug(MessageContext msgCtxt, String name, String value) {
+    sink.debug(msgCtxt, name, value);
+  }
+
+  // the default: each event into the context variable of the same name
+  static final class VariablesSink implements DiagnosticsSink {
+    static final VariablesSink INSTANCE = new VariablesSink();
+
+    public void error(MessageContext msgCtxt, String name, Throwable error) {
+      msgCtxt.setVariable(name, JoseCalloutBase.getStackTraceAsString(error));
+    }
+
+    public void debug(MessageContext msgCtxt, String name, String value) {
+      msgCtxt.setVariable(name, value);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.message.MessageContext;
+
+/*
+ * DiagnosticsSink
+ *
+ * Where the callouts send their diagnostics: the stack trace of an
+ * unexpected exception, and, at the debug level, values like the claims a
+ * creator was given. By default these go into context variables, as they
+ * always have. To send them somewhere else, a log for example, name a class
+ * that implements this interface, and has a public no-argument constructor,
+ * in the diagnostics-sink property. One instance of that class serves every
+ * policy that names it, on many threads at once.
+ *
+ * The name of an event is the name of the context variable the default
+ * sink would set, like jwt_stacktrace.
+ *
+ */
+public interface DiagnosticsSink {
+  void error(MessageContext msgCtxt, String name, Throwable error);
+
+  void debug(MessageContext msgCtxt, String name, String value);
+}
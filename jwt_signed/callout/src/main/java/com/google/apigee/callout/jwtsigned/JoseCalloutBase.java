@@ -20,7 +20,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -31,12 +30,16 @@ import java.util.regex.Pattern;
 public abstract class JoseCalloutBase {
   private String varNamePrefix;
   protected Map<String, String> properties;
-  private static final Pattern variableReferencePattern;
+  // compiled templates for the property values, by value
+  private final Map<String, PropertyTemplate> templates;
+  // the configuration that does not depend on the request
+  protected final PolicyConfig config;
+  // where stack traces and debug values go
+  protected final Diagnostics diagnostics;
   private static final Pattern commonErrorPattern;
 
   static {
     java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
-    variableReferencePattern = Pattern.compile("(.*?)\\{([^\\{\\} \"]+?)\\}(.*?)");
     commonErrorPattern = Pattern.compile("^(.+)[:;] (.+)$");
   }
 
@@ -53,6 +56,15 @@ public abstract class JoseCalloutBase {
       }
     }
     this.properties = Collections.unmodifiableMap(properties);
+    Map<String, PropertyTemplate> t = new HashMap<String, PropertyTemplate>();
+    for (String value : m.values()) {
+      if (value.indexOf('{') != -1) {
+        t.put(value, PropertyTemplate.compile(value));
+      }
+    }
+    this.templates = Collections.unmodifiableMap(t);
+    this.config = PolicyConfig.from(this.properties);
+    this.diagnostics = Diagnostics.from(this.properties, getDebug());
   }
 
   protected String varName(String s) {
@@ -91,6 +103,12 @@ public abstract class JoseCalloutBase {
   }
 
   protected String getAlgorithm(MessageContext msgCtxt) throws IllegalStateException {
+    if (config.algorithmError != null) {
+      throw new IllegalStateException(config.algorithmError);
+    }
+    if (config.algorithm != null) {
+      return config.algorithm;
+    }
     String algorithm = ((String) this.properties.get("algorithm")).trim();
     if (algorithm == null || algorithm.trim().equals("")) {
       throw new IllegalStateException("algorithm is not specified or is empty.");
@@ -99,31 +117,22 @@ public abstract class JoseCalloutBase {
     if (algorithm == null || algorithm.trim().equals("")) {
       throw new IllegalStateException("issuer is not specified or is empty.");
     }
-    if (!(algorithm.equals("HS256") || algorithm.equals("RS256") || algorithm.equals("PS256"))) {
+    if (!PolicyConfig.isSupportedAlgorithm(algorithm)) {
       throw new IllegalStateException("unsupported algorithm: '" + algorithm + "'");
     }
     return algorithm;
   }
 
   protected String resolvePropertyValue(String spec, MessageContext msgCtxt) {
-    Matcher matcher = variableReferencePattern.matcher(spec);
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(sb, "");
-      sb.append(matcher.group(1));
-      Object v = msgCtxt.getVariable(matcher.group(2));
-      if (v != null) {
-        Class clz = v.getClass();
-        if (clz.isArray()) {
-          sb.append(Arrays.stream((Object[]) v).map(Object::toString).toArray(String[]::new));
-        } else {
-          sb.append(v.toString());
-        }
-      }
-      sb.append(matcher.group(3));
+    if (spec.indexOf('{') == -1) {
+      return spec;
+    }
+    PropertyTemplate template = templates.get(spec);
+    if (template == null) {
+      // not a configured value, eg a value that came from a variable; don't retain it
+      template = PropertyTemplate.compile(spec);
     }
-    matcher.appendTail(sb);
-    return sb.toString();
+    return template.resolve(msgCtxt);
   }
 
   // If the value of a property value contains open and close curlies, eg,
@@ -162,17 +171,25 @@ public abstract class JoseCalloutBase {
   }
 
   protected void setExceptionVariables(Exception exc1, MessageContext msgCtxt) {
-    // if (getDebug()) {
-    //   exc1.printStackTrace(System.out); /* to MP system.log */
-    // }
+    setExceptionVariables(exc1, msgCtxt, varNamePrefix);
+  }
+
+  // reports the stack trace of an unexpected exception, if diagnostics want it
+  protected void reportException(Exception exc1, MessageContext msgCtxt, String prefix) {
+    if (diagnostics.wantsError()) {
+      diagnostics.error(msgCtxt, prefix + "stacktrace", exc1);
+    }
+  }
+
+  protected void setExceptionVariables(Exception exc1, MessageContext msgCtxt, String prefix) {
     String error = exc1.toString().replaceAll("\n", " ");
-    msgCtxt.setVariable(varName("exception"), error);
+    msgCtxt.setVariable(prefix + "exception", error);
     Matcher matcher = commonErrorPattern.matcher(error);
     if (matcher.matches()) {
-      msgCtxt.setVariable(varName("error"), matcher.group(2));
-      msgCtxt.setVariable(varName("reason"), matcher.group(2));
+      msgCtxt.setVariable(prefix + "error", matcher.group(2));
+      msgCtxt.setVariable(prefix + "reason", matcher.group(2));
     } else {
-      msgCtxt.setVariable(varName("error"), error);
+      msgCtxt.setVariable(prefix + "error", error);
     }
   }
 }
@@ -0,0 +1,292 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSVerifier;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.security.interfaces.RSAPublicKey;
+import java.text.ParseException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * JwksCache
+ *
+ * Holds the keys of JWKS documents retrieved from remote URIs, as parsed
+ * JwksKeySet indexes. Entries are refreshed in the background once they are
+ * older than the refresh interval; while the refresh runs, and if it fails
+ * (including when the new document does not parse), callers continue to
+ * receive the last good key set. Only the first lookup of a URI (or a lookup
+ * after the URI has gone unused for the idle period) fetches on the calling
+ * thread.
+ *
+ * The refresh interval for a URI is the max-age of the Cache-Control header
+ * the server sent, within limits, or a default when there is none. Refreshes
+ * are conditional requests, using the ETag and Last-Modified of the document
+ * we hold; a 304 response just extends the life of the parsed keys. The
+ * HTTP work, with its timeouts and size limit, is in JwksClient.
+ *
+ * A kid that is not in the cached key set may mean the issuer has rotated
+ * keys, so it triggers one forced re-fetch of the URI. Concurrent lookups
+ * for the same uri and kid share a single resolution, forced re-fetches of
+ * a URI happen at most once per re-fetch interval, and a kid that is still
+ * unknown afterwards is remembered as unknown for a short while. Tokens
+ * bearing random kids therefore cost a map lookup, not a fetch.
+ *
+ */
+public class JwksCache {
+  static final long REFRESH_INTERVAL_MINUTES = 5;
+  static final long MIN_REFRESH_INTERVAL_SECONDS = 30;
+  static final long MAX_REFRESH_INTERVAL_HOURS = 24;
+  static final long IDLE_EXPIRY_MINUTES = 60;
+  static final long MIN_REFETCH_INTERVAL_SECONDS = 30;
+  static final long UNKNOWN_KID_TTL_SECONDS = 60;
+  private static final int MAX_CACHE_ENTRIES = 128;
+  private static final int REFRESH_THREADS = 2;
+  private static final int MAX_UNKNOWN_KIDS = 10240;
+  private static final Pattern maxAgePattern =
+      Pattern.compile("(?:^|[,\\s])max-age\\s*=\\s*\"?(\\d+)", Pattern.CASE_INSENSITIVE);
+  private static final Pattern noCachePattern =
+      Pattern.compile("(?:^|[,\\s])no-(?:cache|store)\\b", Pattern.CASE_INSENSITIVE);
+
+  private static final JwksCache defaultInstance =
+      new JwksCache(
+          Ticker.systemTicker(),
+          // A small pool with a bounded queue. Each URI has at most one refresh
+          // in flight, so the queue only fills if the IdPs are all hanging; then
+          // refreshes are deferred rather than queued without limit.
+          new ThreadPoolExecutor(
+              REFRESH_THREADS,
+              REFRESH_THREADS,
+              60L,
+              TimeUnit.SECONDS,
+              new ArrayBlockingQueue<Runnable>(MAX_CACHE_ENTRIES),
+              new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jwks-refresh-%d").build()),
+          // the timeouts and size limit may be set in the JVM config
+          JwksClient.fromProperties(System.getProperties()));
+
+  // one cached JWKS, with the validators needed to revalidate it
+  private static class Entry {
+    final JwksKeySet keySet;
+    final String etag;
+    final String lastModified;
+    final long refreshAtNanos;
+
+    Entry(JwksKeySet keySet, String etag, String lastModified, long refreshAtNanos) {
+      this.keySet = keySet;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.refreshAtNanos = refreshAtNanos;
+    }
+  }
+
+  private final Ticker ticker;
+  private final JwksClient client;
+  private final LoadingCache<String, Entry> cache;
+  // by uri; an entry means a forced re-fetch happened within the interval
+  private final Cache<String, Boolean> recentRefetches;
+  // by uri and kid; a false value means the kid is unknown
+  private final Cache<String, Boolean> kidLookups;
+
+  JwksCache(Ticker ticker, Executor refreshExecutor) {
+    this(ticker, refreshExecutor, new JwksClient());
+  }
+
+  JwksCache(final Ticker ticker, final Executor refreshExecutor, JwksClient client) {
+    this.ticker = ticker;
+    this.client = client;
+    cache =
+        CacheBuilder.newBuilder()
+            .concurrencyLevel(4)
+            .maximumSize(MAX_CACHE_ENTRIES)
+            .ticker(ticker)
+            // Consider a refresh this often. Whether one is due depends on the
+            // max-age sent with the document; an access that finds it due triggers
+            // an async reload and returns the current value without waiting.
+            .refreshAfterWrite(MIN_REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS)
+            // drop URIs that nobody has asked for in a while
+            .expireAfterAccess(IDLE_EXPIRY_MINUTES, TimeUnit.MINUTES)
+            .build(
+                new CacheLoader<String, Entry>() {
+                  public Entry load(String uri) throws Exception {
+                    return fetch(uri, null);
+                  }
+
+                  public ListenableFuture<Entry> reload(final String uri, final Entry previous) {
+                    if (ticker.read() < previous.refreshAtNanos) {
+                      return Futures.immediateFuture(previous);
+                    }
+                    ListenableFutureTask<Entry> task =
+                        ListenableFutureTask.create(() -> revalidate(uri, previous));
+                    try {
+                      refreshExecutor.execute(task);
+                    } catch (RejectedExecutionException e) {
+                      return Futures.immediateFuture(retryLater(previous));
+                    }
+                    return task;
+                  }
+                });
+
+    recentRefetches =
+        CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHE_ENTRIES)
+            .ticker(ticker)
+            .expireAfterWrite(MIN_REFETCH_INTERVAL_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    kidLookups =
+        CacheBuilder.newBuilder()
+            .concurrencyLevel(4)
+            .maximumSize(MAX_UNKNOWN_KIDS)
+            .ticker(ticker)
+            .expireAfterWrite(UNKNOWN_KID_TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+  }
+
+  public static JwksCache getDefault() {
+    return defaultInstance;
+  }
+
+  public JwksKeySet get(String uri) throws ExecutionException {
+    return cache.get(uri).keySet;
+  }
+
+  public JWSVerifier getVerifier(String uri, String kid) throws ExecutionException {
+    JwksKeySet keySet = resolve(uri, kid);
+    return (keySet == null) ? null : keySet.getVerifier(kid);
+  }
+
+  public RSAPublicKey getPublicKey(String uri, String kid) throws ExecutionException {
+    JwksKeySet keySet = resolve(uri, kid);
+    return (keySet == null) ? null : keySet.getPublicKey(kid);
+  }
+
+  // returns a key set that contains the kid, or null
+  private JwksKeySet resolve(final String uri, final String kid) throws ExecutionException {
+    JwksKeySet keySet = get(uri);
+    if (keySet.containsKey(kid)) {
+      return keySet;
+    }
+    if (kid == null) {
+      return null;
+    }
+    String lookupKey = uri + " " + kid;
+    // concurrent callers for the same key wait on the one load
+    boolean found =
+        kidLookups.get(
+            lookupKey,
+            () -> {
+              refetch(uri);
+              return get(uri).containsKey(kid);
+            });
+    if (!found) {
+      return null;
+    }
+    kidLookups.invalidate(lookupKey);
+    return get(uri);
+  }
+
+  private void refetch(final String uri) throws ExecutionException {
+    recentRefetches.get(
+        uri,
+        () -> {
+          try {
+            cache.put(uri, fetch(uri, cache.getIfPresent(uri)));
+          } catch (Exception e) {
+            // a failed attempt also counts against the interval; keep the keys we have
+          }
+          return Boolean.TRUE;
+        });
+  }
+
+  private Entry revalidate(String uri, Entry previous) {
+    try {
+      return fetch(uri, previous);
+    } catch (Exception e) {
+      return retryLater(previous);
+    }
+  }
+
+  // keep serving what we have, and try again after the minimum interval
+  private Entry retryLater(Entry previous) {
+    return new Entry(
+        previous.keySet,
+        previous.etag,
+        previous.lastModified,
+        ticker.read() + TimeUnit.SECONDS.toNanos(MIN_REFRESH_INTERVAL_SECONDS));
+  }
+
+  private Entry fetch(String uri, Entry previous)
+      throws IOException, ParseException, JOSEException {
+    JwksClient.Response response =
+        (previous == null)
+            ? client.get(uri, null, null)
+            : client.get(uri, previous.etag, previous.lastModified);
+    long refreshAtNanos = ticker.read() + refreshIntervalNanos(response.cacheControl);
+    if (response.status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+      // unchanged; keep the parsed keys, and any validator the server did not resend
+      return new Entry(
+          previous.keySet,
+          response.etag != null ? response.etag : previous.etag,
+          response.lastModified != null ? response.lastModified : previous.lastModified,
+          refreshAtNanos);
+    }
+    if (response.status != HttpURLConnection.HTTP_OK) {
+      throw new IOException("fetching " + uri + " returned status " + response.status);
+    }
+    return new Entry(
+        JwksKeySet.parse(response.body), response.etag, response.lastModified, refreshAtNanos);
+  }
+
+  static long refreshIntervalNanos(String cacheControl) {
+    if (cacheControl == null) {
+      return TimeUnit.MINUTES.toNanos(REFRESH_INTERVAL_MINUTES);
+    }
+    if (noCachePattern.matcher(cacheControl).find()) {
+      return TimeUnit.SECONDS.toNanos(MIN_REFRESH_INTERVAL_SECONDS);
+    }
+    Matcher m = maxAgePattern.matcher(cacheControl);
+    if (!m.find()) {
+      return TimeUnit.MINUTES.toNanos(REFRESH_INTERVAL_MINUTES);
+    }
+    long seconds;
+    try {
+      seconds = Long.parseLong(m.group(1));
+    } catch (NumberFormatException e) {
+      seconds = Long.MAX_VALUE; // more digits than a long holds
+    }
+    seconds = Math.max(seconds, MIN_REFRESH_INTERVAL_SECONDS);
+    seconds = Math.min(seconds, TimeUnit.HOURS.toSeconds(MAX_REFRESH_INTERVAL_HOURS));
+    return TimeUnit.SECONDS.toNanos(seconds);
+  }
+}
@@ -0,0 +1,171 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * JwksClient
+ *
+ * Retrieves JWKS documents over HTTP, with limits, so that a slow or
+ * misbehaving IdP cannot hold a thread indefinitely or exhaust memory:
+ *
+ *  - a connect timeout, and a read timeout that applies to each read and
+ *    also to reading the whole response;
+ *  - a maximum response size;
+ *  - responses are always read to the end (or the limit) and closed,
+ *    including error responses, so that the JDK can return the connection
+ *    to its keep-alive pool for the next fetch to the same host.
+ *
+ * The body is returned as bytes, for parsing without an intermediate String.
+ *
+ * The shared JwksCache takes its limits from the JVM system properties
+ * jwks-connect-timeout and jwks-read-timeout, in milliseconds, and
+ * jwks-max-bytes; see fromProperties().
+ *
+ */
+public class JwksClient {
+  static final int DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+  static final int DEFAULT_READ_TIMEOUT_MS = 5000;
+  static final int DEFAULT_MAX_RESPONSE_BYTES = 512 * 1024;
+
+  private final int connectTimeoutMs;
+  private final int readTimeoutMs;
+  private final int maxResponseBytes;
+
+  public static class Response {
+    public final int status;
+    public final byte[] body; // null unless status is 200
+    public final String etag;
+    public final String lastModified;
+    public final String cacheControl;
+
+    Response(int status, byte[] body, String etag, String lastModified, String cacheControl) {
+      this.status = status;
+      this.body = body;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.cacheControl = cacheControl;
+    }
+  }
+
+  public JwksClient() {
+    this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_MAX_RESPONSE_BYTES);
+  }
+
+  public JwksClient(int connectTimeoutMs, int readTimeoutMs, int maxResponseBytes) {
+    if (connectTimeoutMs <= 0 || readTimeoutMs <= 0 || maxResponseBytes <= 0) {
+      throw new IllegalArgumentException("timeouts and maximum size must be positive");
+    }
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.readTimeoutMs = readTimeoutMs;
+    this.maxResponseBytes = maxResponseBytes;
+  }
+
+  // A client with the limits set in the properties, each a positive
+  // integer. A limit that is missing or not valid keeps its default, so
+  // that a bad setting cannot keep the shared cache from loading.
+  static JwksClient fromProperties(Properties properties) {
+    return new JwksClient(
+        positiveInt(properties, "jwks-connect-timeout", DEFAULT_CONNECT_TIMEOUT_MS),
+        positiveInt(properties, "jwks-read-timeout", DEFAULT_READ_TIMEOUT_MS),
+        positiveInt(properties, "jwks-max-bytes", DEFAULT_MAX_RESPONSE_BYTES));
+  }
+
+  private static int positiveInt(Properties properties, String name, int defaultValue) {
+    String value = properties.getProperty(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      int i = Integer.parseInt(value.trim());
+      return (i > 0) ? i : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  // etag and lastModified, when not null, make the request conditional
+  public Response get(String uri, String etag, String lastModified) throws IOException {
+    URLConnection urlConnection = new URL(uri).openConnection();
+    if (!(urlConnection instanceof HttpURLConnection)) {
+      throw new IOException("jwks-uri must be an http or https URI");
+    }
+    HttpURLConnection connection = (HttpURLConnection) urlConnection;
+    connection.setConnectTimeout(connectTimeoutMs);
+    connection.setReadTimeout(readTimeoutMs);
+    connection.setUseCaches(false);
+    connection.setInstanceFollowRedirects(true);
+    connection.setRequestProperty("Accept", "application/json");
+    if (etag != null) {
+      connection.setRequestProperty("If-None-Match", etag);
+    }
+    if (lastModified != null) {
+      connection.setRequestProperty("If-Modified-Since", lastModified);
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+    int status = connection.getResponseCode();
+    byte[] body = null;
+    if (status == HttpURLConnection.HTTP_OK) {
+      if (connection.getContentLengthLong() > maxResponseBytes) {
+        connection.disconnect();
+        throw new IOException("the JWKS response from " + uri + " is too large");
+      }
+      body = readFully(connection.getInputStream(), deadline, uri);
+    } else {
+      // read and discard, so the connection can be reused
+      InputStream errorStream = connection.getErrorStream();
+      if (errorStream != null) {
+        readFully(errorStream, deadline, uri);
+      }
+    }
+    return new Response(
+        status,
+        body,
+        connection.getHeaderField("ETag"),
+        connection.getHeaderField("Last-Modified"),
+        connection.getHeaderField("Cache-Control"));
+  }
+
+  private byte[] readFully(InputStream in, long deadline, String uri) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        if (out.size() + n > maxResponseBytes) {
+          throw new IOException("the JWKS response from " + uri + " is too large");
+        }
+        out.write(buffer, 0, n);
+        if (System.nanoTime() > deadline) {
+          throw new SocketTimeoutException("timed out reading the JWKS response from " + uri);
+        }
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
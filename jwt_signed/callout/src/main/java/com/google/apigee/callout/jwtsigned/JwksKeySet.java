@@ -0,0 +1,99 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import java.security.interfaces.RSAPublicKey;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+
+/*
+ * JwksKeySet
+ *
+ * An immutable index of the RSA keys in a JWKS document, by kid. The
+ * document is parsed, and each public key and its verifier built, exactly
+ * once per fetch; after that, resolving a kid is a map lookup.
+ *
+ */
+public class JwksKeySet {
+  private final Map<String, RSAPublicKey> publicKeys;
+  private final Map<String, JWSVerifier> verifiers;
+
+  private JwksKeySet(Map<String, RSAPublicKey> publicKeys, Map<String, JWSVerifier> verifiers) {
+    this.publicKeys = Collections.unmodifiableMap(publicKeys);
+    this.verifiers = Collections.unmodifiableMap(verifiers);
+  }
+
+  public static JwksKeySet parse(String jwksJson) throws ParseException, JOSEException {
+    return index(JWKSet.parse(jwksJson));
+  }
+
+  // parses the UTF-8 bytes directly, without first building a String
+  public static JwksKeySet parse(byte[] jwksJson) throws ParseException, JOSEException {
+    Object json;
+    try {
+      json = new JSONParser(JSONParser.MODE_JSON_SIMPLE).parse(jwksJson);
+    } catch (net.minidev.json.parser.ParseException e) {
+      throw new ParseException("invalid JWKS: " + e.getMessage(), 0);
+    }
+    if (!(json instanceof JSONObject)) {
+      throw new ParseException("invalid JWKS: not a JSON object", 0);
+    }
+    return index(JWKSet.parse((JSONObject) json));
+  }
+
+  private static JwksKeySet index(JWKSet jwkSet) throws JOSEException {
+    Map<String, RSAPublicKey> publicKeys = new HashMap<String, RSAPublicKey>();
+    Map<String, JWSVerifier> verifiers = new HashMap<String, JWSVerifier>();
+    for (JWK jwk : jwkSet.getKeys()) {
+      // only RSA signing keys are of use to this callout
+      String kid = jwk.getKeyID();
+      if (kid == null || !(jwk instanceof RSAKey) || KeyUse.ENCRYPTION.equals(jwk.getKeyUse())) {
+        continue;
+      }
+      RSAPublicKey publicKey = ((RSAKey) jwk).toRSAPublicKey();
+      publicKeys.put(kid, publicKey);
+      verifiers.put(kid, new RSASSAVerifier(publicKey));
+    }
+    return new JwksKeySet(publicKeys, verifiers);
+  }
+
+  public RSAPublicKey getPublicKey(String kid) {
+    return (kid == null) ? null : publicKeys.get(kid);
+  }
+
+  public JWSVerifier getVerifier(String kid) {
+    return (kid == null) ? null : verifiers.get(kid);
+  }
+
+  public boolean containsKey(String kid) {
+    return kid != null && publicKeys.containsKey(kid);
+  }
+
+  public int size() {
+    return publicKeys.size();
+  }
+}
@@ -57,7 +57,6 @@ public class JwsCreatorCallout extends SignerCallout implements Execution {
   }
 
   public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt) {
-    boolean debug = getDebug();
     try {
       Date now = new Date();
       JWSAlgorithm jwsAlg;
@@ -99,10 +98,7 @@ public class JwsCreatorCallout extends SignerCallout implements Execution {
       setExceptionVariables(exc1, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (Exception e) {
-      if (getDebug()) {
-        String stacktrace = getStackTraceAsString(e);
-        msgCtxt.setVariable(varName("stacktrace"), stacktrace);
-      }
+      reportException(e, msgCtxt, varName(""));
       setExceptionVariables(e, msgCtxt);
       return ExecutionResult.ABORT;
     }
@@ -21,9 +21,8 @@ import com.apigee.flow.execution.IOIntensive;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
 import com.nimbusds.jose.JWSHeader;
-import com.nimbusds.jose.JWSObject;
 import com.nimbusds.jose.JWSVerifier;
-import com.nimbusds.jose.Payload;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 @IOIntensive
@@ -64,7 +63,6 @@ public class JwsVerifierCallout extends VerifierCallout implements Execution {
     // - the signature. It must verify.
     msgCtxt.setVariable(varName("isValid"), "false");
     ExecutionResult result = ExecutionResult.ABORT;
-    boolean debug = getDebug();
     boolean continueOnError = false;
     boolean wantVerify = getWantVerify(msgCtxt);
     try {
@@ -74,23 +72,31 @@ public class JwsVerifierCallout extends VerifierCallout implements Execution {
       // 1. read the JWS
       String jws = getJws(msgCtxt); // a dot-separated JWS
       String detachedContent = getDetachedContent(msgCtxt);
-      JWSObject jwsObject = null;
+      CompactToken token = null;
+      JWSHeader jwsh = null;
+      String headerJson = null;
+      byte[] signingInput = null;
 
       try {
-        jwsObject =
+        token = CompactToken.parse(jws);
+        if (detachedContent != null && !token.isPayloadEmpty()) {
+          throw new java.text.ParseException("The payload Base64URL part must be empty", 0);
+        }
+        byte[] headerBytes = token.decodeHeader();
+        jwsh = JWSHeader.parse(CompactToken.parseJsonObject(headerBytes));
+        headerJson = new String(headerBytes, StandardCharsets.UTF_8);
+        // the payload is never decoded here, so check its characters now
+        signingInput =
             (detachedContent != null)
-                ? JWSObject.parse(jws, new Payload(detachedContent))
-                : JWSObject.parse(jws);
-
+                ? token.getSigningInput(detachedContent.getBytes(StandardCharsets.UTF_8))
+                : token.getSigningInput();
       } catch (java.text.ParseException pe1) {
         msgCtxt.setVariable(varName("reason"), "the JWS did not parse.");
         return (continueOnError) ? ExecutionResult.SUCCESS : ExecutionResult.ABORT;
       }
 
-      JWSHeader jwsh = jwsObject.getHeader();
-      net.minidev.json.JSONObject json = jwsh.toJSONObject();
-      msgCtxt.setVariable(varName("jwsheader"), json.toString());
-      String kid = (String) json.get("kid");
+      msgCtxt.setVariable(varName("jwsheader"), headerJson);
+      String kid = jwsh.getKeyID();
       if (kid != null) msgCtxt.setVariable(varName("kid"), kid);
 
       if (wantVerify) {
@@ -112,7 +118,7 @@ public class JwsVerifierCallout extends VerifierCallout implements Execution {
 
         // 3. conditionally verify the signature
         JWSVerifier verifier = getVerifier(requiredAlgorithm, jwsh, msgCtxt);
-        if (jwsObject.verify(verifier)) {
+        if (verifier.verify(jwsh, signingInput, token.getSignature())) {
           verified = true;
           msgCtxt.setVariable(varName("verified"), "true");
         } else {
@@ -135,10 +141,7 @@ public class JwsVerifierCallout extends VerifierCallout implements Execution {
         result = ExecutionResult.SUCCESS;
       }
     } catch (Exception e) {
-      if (debug) {
-        String stacktrace = getStackTraceAsString(e);
-        msgCtxt.setVariable(varName("stacktrace"), stacktrace);
-      }
+      reportException(e, msgCtxt, varName(""));
       setExceptionVariables(e, msgCtxt);
       if (continueOnError) {
         result = ExecutionResult.SUCCESS;
@@ -21,8 +21,6 @@ import com.apigee.flow.execution.IOIntensive;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.util.TimeResolver;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Maps;
 import com.nimbusds.jose.JOSEObjectType;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSHeader;
@@ -199,24 +197,6 @@ public class JwtCreatorCallout extends SignerCallout implements Execution {
     return parseDateOrTimespan(value.trim(), now);
   }
 
-  // Return all properties that begin with claim_
-  // This allows this Create callout to embed each of these
-  // claims into the JWT.
-  private Map<String, String> customClaimsProperties(final MessageContext msgCtxt) {
-    Predicate<Map.Entry<String, String>> p1 =
-        new Predicate<Map.Entry<String, String>>() {
-          @Override
-          public boolean apply(Map.Entry<String, String> entry) {
-            boolean result = entry.getKey().startsWith("claim_");
-            // diagnostics
-            msgCtxt.setVariable("jwt_property_" + entry.getKey(), entry.getValue());
-            return result;
-          }
-        };
-    Map<String, String> claimsProps = Maps.filterEntries(properties, p1);
-    return claimsProps;
-  }
-
   private String[] nativeToJavaArray(org.mozilla.javascript.NativeArray a) {
     String[] result = new String[(int) a.getLength()];
     for (Object o : a.getIds()) {
@@ -234,8 +214,13 @@ public class JwtCreatorCallout extends SignerCallout implements Execution {
     return new JWTClaimsSet.Builder(JWTClaimsSet.parse((JSONObject) JSONValue.parseWithException(payload)));
   }
 
+  // The token to emit, given the signed JWT. A nested JWT wraps it further.
+  protected String serialize(SignedJWT signedJWT, MessageContext msgCtxt) throws Exception {
+    return signedJWT.serialize();
+  }
+
   public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt) {
-    boolean debug = getDebug();
+    boolean debug = diagnostics.wantsDebug();
     try {
       Instant now = Instant.now();
       JWSAlgorithm jwsAlg;
@@ -269,58 +254,47 @@ public class JwtCreatorCallout extends SignerCallout implements Execution {
       }
 
       // 2. add all the provided custom claims to the set
-      Map<String, String> customClaims = customClaimsProperties(msgCtxt);
-      if (customClaims.size() > 0) {
-        // iterate the map
-        for (Map.Entry<String, String> entry : customClaims.entrySet()) {
-          String key = entry.getKey();
-          String providedValue = entry.getValue();
-          String[] parts = StringUtils.split(key, "_", 2);
-          // sanity check - is this a valid claim?
-          if (parts.length == 2 && parts[0].equals("claim") && providedValue != null) {
-            String claimName = parts[1];
-            // msgCtxt.setVariable(varName("resolving_")+claimName, providedValue);
-            Object resolvedValue = resolvePropertyValueToObject(providedValue, msgCtxt);
-            msgCtxt.setVariable(varName("resolved_") + claimName, resolvedValue.toString());
-            if (claimName.startsWith("json")) {
-              String[] nameParts = StringUtils.split(claimName, "_", 2);
-              if (nameParts.length != 2 || StringUtils.isBlank(parts[1])) {
-                throw new IllegalStateException("invalid json claim configuration: " + claimName);
-              }
-              try {
-                net.minidev.json.parser.JSONParser parser =
-                    new net.minidev.json.parser.JSONParser();
-                net.minidev.json.JSONObject thisClaim =
-                    (net.minidev.json.JSONObject) parser.parse(resolvedValue.toString());
-                claimsBuilder.claim(nameParts[1], thisClaim);
-              } catch (java.lang.Exception exc1) {
-                throw new IllegalStateException("cannot parse claim as json: " + claimName, exc1);
-              }
-            } else if (claimName.equals("aud") && resolvedValue instanceof String) {
-              // special case aud, which can be an array
-              audiences = StringUtils.split(providedValue, ",");
-              claimsBuilder.audience(java.util.Arrays.asList(audiences));
-            } else {
-              if (resolvedValue instanceof String[]) {
-                claimsBuilder.claim(claimName, java.util.Arrays.asList((String[]) resolvedValue));
-              } else if (resolvedValue instanceof org.mozilla.javascript.NativeArray) {
-                // an array set in a JavaScript callout
-                claimsBuilder.claim(
-                    claimName,
-                    java.util.Arrays.asList(
-                        nativeToJavaArray((org.mozilla.javascript.NativeArray) resolvedValue)));
-              } else if (resolvedValue != null) {
-                // claims.setCustomClaim(claimName, providedValue);
-                claimsBuilder.claim(claimName, resolvedValue.toString());
-              } else {
-                claimsBuilder.claim(claimName, null);
-              }
-            }
-            if (debug) {
-              msgCtxt.setVariable(varName("provided_") + claimName, resolvedValue.toString());
-            }
+      for (PolicyConfig.ClaimRule claim : config.claims) {
+        String claimName = claim.name;
+        Object resolvedValue = claim.resolveToObject(msgCtxt);
+        msgCtxt.setVariable(varName("resolved_") + claimName, resolvedValue.toString());
+        if (claimName.startsWith("json")) {
+          String[] nameParts = StringUtils.split(claimName, "_", 2);
+          if (nameParts.length != 2 || StringUtils.isBlank(nameParts[1])) {
+            throw new IllegalStateException("invalid json claim configuration: " + claimName);
+          }
+          try {
+            net.minidev.json.parser.JSONParser parser =
+                new net.minidev.json.parser.JSONParser();
+            net.minidev.json.JSONObject thisClaim =
+                (net.minidev.json.JSONObject) parser.parse(resolvedValue.toString());
+            claimsBuilder.claim(nameParts[1], thisClaim);
+          } catch (java.lang.Exception exc1) {
+            throw new IllegalStateException("cannot parse claim as json: " + claimName, exc1);
+          }
+        } else if (claimName.equals("aud") && resolvedValue instanceof String) {
+          // special case aud, which can be an array
+          audiences = StringUtils.split((String) resolvedValue, ",");
+          claimsBuilder.audience(java.util.Arrays.asList(audiences));
+        } else {
+          if (resolvedValue instanceof String[]) {
+            claimsBuilder.claim(claimName, java.util.Arrays.asList((String[]) resolvedValue));
+          } else if (resolvedValue instanceof org.mozilla.javascript.NativeArray) {
+            // an array set in a JavaScript callout
+            claimsBuilder.claim(
+                claimName,
+                java.util.Arrays.asList(
+                    nativeToJavaArray((org.mozilla.javascript.NativeArray) resolvedValue)));
+          } else if (resolvedValue != null) {
+            // claims.setCustomClaim(claimName, providedValue);
+            claimsBuilder.claim(claimName, resolvedValue.toString());
+          } else {
+            claimsBuilder.claim(claimName, null);
           }
         }
+        if (debug) {
+          diagnostics.debug(msgCtxt, varName("provided_") + claimName, String.valueOf(resolvedValue));
+        }
       }
 
       // 3. serialize to a string, for diagnostics purposes
@@ -354,17 +328,14 @@ public class JwtCreatorCallout extends SignerCallout implements Execution {
 
       // 5. serialize to compact form, produces something like
       // eyJhbGciOiJIUzI1NiJ9.SGVsbG8sIHdvcmxkIQ.onOUhyuz0Y18UASXlSc1eS0NkWyA
-      String jwt = signedJWT.serialize();
+      String jwt = serialize(signedJWT, msgCtxt);
       msgCtxt.setVariable(varName("jwt"), jwt);
 
     } catch (IllegalStateException exc1) {
       setExceptionVariables(exc1, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (Exception e) {
-      if (getDebug()) {
-        String stacktrace = getStackTraceAsString(e);
-        msgCtxt.setVariable(varName("stacktrace"), stacktrace);
-      }
+      reportException(e, msgCtxt, varName(""));
       setExceptionVariables(e, msgCtxt);
       return ExecutionResult.ABORT;
     }
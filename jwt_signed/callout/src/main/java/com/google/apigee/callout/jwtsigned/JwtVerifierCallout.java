@@ -20,16 +20,25 @@ import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.IOIntensive;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Maps;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.JWSVerifier;
 import com.nimbusds.jwt.JWTClaimsSet;
-import com.nimbusds.jwt.SignedJWT;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.commons.lang3.time.FastDateFormat;
@@ -42,12 +51,83 @@ public class JwtVerifierCallout extends VerifierCallout implements Execution {
   // in the future. This number quantifies the allowance for time skew
   // between issuer and verifier (=this code).
   private static final long defaultTimeAllowanceMilliseconds = 1000L;
+  // A larger token is rejected before any of it is decoded.
+  private static final int defaultMaxJwtLength = 16 * 1024;
+  // The most tokens a batch may hold, and the threads that check their
+  // signatures when parallel-verify is true. When the pool is busy, the
+  // calling thread checks the signature itself.
+  private static final int MAX_BATCH_SIZE = 16;
+  private static final int BATCH_THREADS =
+      Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private static final ExecutorService batchExecutor =
+      new ThreadPoolExecutor(
+          BATCH_THREADS,
+          BATCH_THREADS,
+          60L,
+          TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(MAX_BATCH_SIZE * BATCH_THREADS),
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jwt-verify-%d").build(),
+          new ThreadPoolExecutor.CallerRunsPolicy());
   // NB: SimpleDateFormat is not thread-safe
   private static final FastDateFormat fdf =
       FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
 
+  // Tokens whose signatures have been verified, by digest of the compact
+  // JWT. Used only when the cache-verified-tokens property is true. A hit
+  // skips the parse and the signature check; the claims and times are still
+  // evaluated, and the context variables set, on every request.
+  private static final int MAX_VERIFIED_TOKENS = 4096;
+  private static final Cache<KeyFingerprint, VerifiedToken> verifiedTokens =
+      CacheBuilder.newBuilder()
+          .concurrencyLevel(4)
+          .maximumSize(MAX_VERIFIED_TOKENS)
+          .expireAfterWrite(1, TimeUnit.HOURS)
+          .build();
+
+  private static class VerifiedToken {
+    final JWSHeader header;
+    final String headerJson;
+    final JWTClaimsSet claims;
+    final String claimsJson;
+    // the verifier that checked the signature. The KeyRegistry and the
+    // JwksCache hand out one verifier per key, so a request configured with a
+    // different key (or after the JWKS has changed) gets a different one, and
+    // misses.
+    final JWSVerifier verifier;
+    final long expiresAtMillis;
+
+    VerifiedToken(
+        JWSHeader header,
+        String headerJson,
+        JWTClaimsSet claims,
+        String claimsJson,
+        JWSVerifier verifier,
+        long expiresAtMillis) {
+      this.header = header;
+      this.headerJson = headerJson;
+      this.claims = claims;
+      this.claimsJson = claimsJson;
+      this.verifier = verifier;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+
+  // the variables to set, when the output-variables property is a literal
+  private final OutputVariables staticOutputVariables;
+
   public JwtVerifierCallout(Map properties) {
     super("jwt_", properties);
+    String spec = (String) this.properties.get("output-variables");
+    staticOutputVariables =
+        (spec == null || PolicyConfig.isLiteral(spec)) ? OutputVariables.parse("jwt_", spec) : null;
+  }
+
+  private OutputVariables getOutputVariables(MessageContext msgCtxt) {
+    if (staticOutputVariables != null) {
+      return staticOutputVariables;
+    }
+    String spec = resolvePropertyValue((String) this.properties.get("output-variables"), msgCtxt);
+    return OutputVariables.parse(varName(""), spec);
   }
 
   private boolean getIgnoreIssuedAt(MessageContext msgCtxt) {
@@ -69,17 +149,93 @@ public class JwtVerifierCallout extends VerifierCallout implements Execution {
       throw new IllegalArgumentException("jwt is null or empty.");
     }
 
-    // strip the Bearer prefix if necessary.
-    // RFC 6750 "The OAuth 2.0 Authorization Framework: Bearer Token Usage", section 2.1
-    // states that the prefix is "Bearer ", case-sensitive.
+    return stripBearer(jwt);
+  }
+
+  // strip the Bearer prefix if necessary.
+  // RFC 6750 "The OAuth 2.0 Authorization Framework: Bearer Token Usage", section 2.1
+  // states that the prefix is "Bearer ", case-sensitive.
+  private static String stripBearer(String jwt) {
     if (jwt.startsWith("Bearer ")) {
       jwt = jwt.substring(7);
     }
-
     return jwt.trim();
   }
 
+  // The jwts property names a variable that holds an array or a list of
+  // JWTs, or a string of comma-separated JWTs.
+  private List<String> getJwts(MessageContext msgCtxt) {
+    String spec = (String) this.properties.get("jwts");
+    if (StringUtils.isBlank(spec)) {
+      throw new IllegalArgumentException("jwts is not specified or is empty.");
+    }
+    Object value = resolvePropertyValueToObject(spec, msgCtxt);
+    List<Object> items = new ArrayList<Object>();
+    if (value instanceof Object[]) {
+      items.addAll(Arrays.asList((Object[]) value));
+    } else if (value instanceof Collection) {
+      items.addAll((Collection<?>) value);
+    } else if (value != null) {
+      items.addAll(Arrays.asList(StringUtils.split(value.toString(), ',')));
+    }
+    List<String> jwts = new ArrayList<String>();
+    for (Object item : items) {
+      if (item != null && !StringUtils.isBlank(item.toString())) {
+        jwts.add(stripBearer(item.toString().trim()));
+      }
+    }
+    if (jwts.size() == 0) {
+      throw new IllegalArgumentException("jwts is null or empty.");
+    }
+    if (jwts.size() > MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException("jwts holds more than " + MAX_BATCH_SIZE + " tokens.");
+    }
+    return jwts;
+  }
+
+  private boolean getParallelVerify(MessageContext msgCtxt) {
+    String value = (String) this.properties.get("parallel-verify");
+    if (StringUtils.isBlank(value)) {
+      return false;
+    }
+    value = resolvePropertyValue(value, msgCtxt);
+    return Boolean.parseBoolean(value);
+  }
+
+  private boolean getCacheVerifiedTokens(MessageContext msgCtxt) {
+    String value = properties.get("cache-verified-tokens");
+    if (StringUtils.isBlank(value)) {
+      return false;
+    }
+    value = resolvePropertyValue(value, msgCtxt);
+    return Boolean.parseBoolean(value);
+  }
+
+  private static VerifiedToken getVerifiedToken(KeyFingerprint tokenDigest) {
+    VerifiedToken cached = verifiedTokens.getIfPresent(tokenDigest);
+    if (cached != null && System.currentTimeMillis() >= cached.expiresAtMillis) {
+      verifiedTokens.invalidate(tokenDigest);
+      return null;
+    }
+    return cached;
+  }
+
+  private int getMaxJwtLength(MessageContext msgCtxt) {
+    String value = (String) this.properties.get("max-jwt-length");
+    if (StringUtils.isBlank(value)) {
+      return defaultMaxJwtLength;
+    }
+    value = resolvePropertyValue(value, msgCtxt);
+    if (StringUtils.isBlank(value)) {
+      return defaultMaxJwtLength;
+    }
+    return Integer.parseInt(value.trim(), 10);
+  }
+
   private long getTimeAllowance(MessageContext msgCtxt) {
+    if (config.timeAllowance != null) {
+      return config.timeAllowance;
+    }
     String timeAllowance = (String) this.properties.get("timeAllowance");
     if (StringUtils.isBlank(timeAllowance)) {
       return defaultTimeAllowanceMilliseconds;
@@ -95,308 +251,419 @@ public class JwtVerifierCallout extends VerifierCallout implements Execution {
     return longValue;
   }
 
-  private void recordTimeVariable(MessageContext msgContext, Date d, String label) {
-    msgContext.setVariable(varName(label), d.getTime() + "");
-    msgContext.setVariable(varName(label + "Formatted"), fdf.format(d));
+  private void recordTimeVariable(
+      OutputVariables outputs, MessageContext msgContext, Date d, String label) {
+    outputs.set(msgContext, label, d.getTime() + "");
+    if (outputs.wants(label + "Formatted")) {
+      outputs.set(msgContext, label + "Formatted", fdf.format(d));
+    }
   }
 
-  // Return all properties that begin with claim_
-  // This allows this Verify callout to check each one of those
-  // claims and only return success only if they all check out.
-  private Map<String, String> requiredClaimsProperties() {
-    Predicate<Map.Entry<String, String>> p1 =
-        new Predicate<Map.Entry<String, String>>() {
-          @Override
-          public boolean apply(Map.Entry<String, String> entry) {
-            return entry.getKey().startsWith("claim_");
-          }
-        };
-    Map<String, String> claimsProps = Maps.filterEntries(properties, p1);
-    return claimsProps;
+  // The state of the verification of one token. Verification runs in three
+  // phases: prepare and finish read and set context variables, while
+  // checkSignature does not touch the message context, so that in a batch
+  // the signature checks can run on other threads.
+  private static class TokenVerification {
+    final String jwt;
+    final String prefix;
+    final OutputVariables outputs;
+    boolean cacheVerifiedTokens;
+    KeyFingerprint tokenDigest;
+    VerifiedToken cached;
+    CompactToken token;
+    JWSHeader jwsh;
+    String headerJson;
+    JWSVerifier verifier;
+    boolean verified;
+    // an exception from checkSignature, rethrown by finish
+    Exception error;
+
+    TokenVerification(String jwt, String prefix, OutputVariables outputs) {
+      this.jwt = jwt;
+      this.prefix = prefix;
+      this.outputs = outputs;
+    }
   }
 
-  public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt) {
-    // The validity of the JWT depends on:
-    // - the structure. it must be valid.
-    // - the algorithm. must match what is required.
-    // - the signature. It must verify.
-    // - the times. Must not be expired, also respect "notbefore".
-    // - the enforced claims. They all must match.
-    msgCtxt.setVariable(varName("isValid"), "false");
-    ExecutionResult result = ExecutionResult.ABORT;
-    boolean debug = getDebug();
-    boolean continueOnError = false;
-    boolean wantVerify = getWantVerify(msgCtxt);
-    try {
-      boolean valid = true;
-      boolean verified = false;
-      continueOnError = getContinueOnError(msgCtxt);
-      // 1. read the JWT
-      String jwt = getJwt(msgCtxt); // a dot-separated JWT
-      SignedJWT signedJWT = null;
+  // Returns the signed JWT that the token carries, or null if the token has
+  // been rejected, in which case the reason has been set. A nested JWT
+  // carries it encrypted; here, the token is the signed JWT.
+  String unwrap(String token, OutputVariables outputs, MessageContext msgCtxt) throws Exception {
+    return token;
+  }
+
+  // Returns false if the token has been rejected, in which case the reason has been set.
+  private boolean prepare(TokenVerification v, MessageContext msgCtxt, boolean wantVerify)
+      throws Exception {
+    OutputVariables outputs = v.outputs;
+    String jwt = v.jwt;
+
+    // 1a. check the size, and decode only the header. The payload is not
+    // decoded until the signature has been checked, so a junk or forged
+    // token is rejected cheaply.
+    if (jwt.length() > getMaxJwtLength(msgCtxt)) {
+      outputs.set(msgCtxt, "reason", "the JWT exceeds the maximum length.");
+      return false;
+    }
+    // 1b. get the signed JWT out of a nested one, after the size check
+    jwt = unwrap(jwt, outputs, msgCtxt);
+    if (jwt == null) {
+      return false;
+    }
+    v.cacheVerifiedTokens = wantVerify && getCacheVerifiedTokens(msgCtxt);
+    if (v.cacheVerifiedTokens) {
+      v.tokenDigest = KeyFingerprint.of(jwt);
+      v.cached = getVerifiedToken(v.tokenDigest);
+    }
+    if (v.cached == null) {
       try {
-        signedJWT = SignedJWT.parse(jwt);
+        v.token = CompactToken.parse(jwt);
+        byte[] headerBytes = v.token.decodeHeader();
+        v.jwsh = JWSHeader.parse(CompactToken.parseJsonObject(headerBytes));
+        if (v.cacheVerifiedTokens || outputs.wants("jwtheader")) {
+          v.headerJson = new String(headerBytes, StandardCharsets.UTF_8);
+        }
       } catch (java.text.ParseException pe1) {
-        msgCtxt.setVariable(varName("reason"), "the JWT did not parse.");
-        return (continueOnError) ? ExecutionResult.SUCCESS : ExecutionResult.ABORT;
+        outputs.set(msgCtxt, "reason", "the JWT did not parse.");
+        return false;
+      }
+    } else {
+      v.jwsh = v.cached.header;
+      v.headerJson = v.cached.headerJson;
+    }
+    outputs.set(msgCtxt, "isSigned", "true");
+
+    // emit the jwt and header, and potentially the kid
+    outputs.set(msgCtxt, "jwt", jwt);
+    outputs.set(msgCtxt, "jwtheader", v.headerJson);
+    String kid = v.jwsh.getKeyID();
+    if (kid != null) outputs.set(msgCtxt, "kid", kid);
+
+    if (wantVerify) {
+      // 2. check that the provided algorithm matches what is required
+      String requiredAlgorithm = getAlgorithm(msgCtxt);
+      String providedAlgorithm = v.jwsh.getAlgorithm().toString();
+      if (!PolicyConfig.isSupportedAlgorithm(providedAlgorithm)) {
+        // invalid configuration, throw an exception (fault)
+        throw new UnsupportedOperationException("provided Algorithm=" + providedAlgorithm);
+      }
+      if (!providedAlgorithm.equals(requiredAlgorithm)) {
+        outputs.set(
+            msgCtxt,
+            "reason",
+            String.format(
+                "Algorithm mismatch. provided=%s, required=%s",
+                providedAlgorithm, requiredAlgorithm));
+        return false;
       }
-      JWTClaimsSet claims = null;
-      msgCtxt.setVariable(varName("isSigned"), "true");
-
-      // emit the jwt and header, and potentially the kid
-      msgCtxt.setVariable(varName("jwt"), jwt);
-      JWSHeader jwsh = signedJWT.getHeader();
-      net.minidev.json.JSONObject json = jwsh.toJSONObject();
-      msgCtxt.setVariable(varName("jwtheader"), json.toString());
-      String kid = (String) json.get("kid");
-      if (kid != null) msgCtxt.setVariable(varName("kid"), kid);
-
-      if (wantVerify) {
-        // 2. check that the provided algorithm matches what is required
-        String requiredAlgorithm = getAlgorithm(msgCtxt);
-        String providedAlgorithm = jwsh.getAlgorithm().toString();
-        if (!providedAlgorithm.equals("HS256") && !providedAlgorithm.equals("RS256") && !providedAlgorithm.equals("PS256")) {
-          // invalid configuration, throw an exception (fault)
-          throw new UnsupportedOperationException("provided Algorithm=" + providedAlgorithm);
-        }
-        if (!providedAlgorithm.equals(requiredAlgorithm)) {
-          msgCtxt.setVariable(
-              varName("reason"),
-              String.format(
-                  "Algorithm mismatch. provided=%s, required=%s",
-                  providedAlgorithm, requiredAlgorithm));
-          return (continueOnError) ? ExecutionResult.SUCCESS : ExecutionResult.ABORT;
-        }
 
-        // 3. conditionally verify the signature
-        JWSVerifier verifier = getVerifier(requiredAlgorithm, jwsh, msgCtxt);
-        if (signedJWT.verify(verifier)) {
-          verified = true;
-          msgCtxt.setVariable(varName("verified"), "true");
-        } else {
-          msgCtxt.setVariable(varName("verified"), "false");
-          msgCtxt.setVariable(varName("reason"), "the signature could not be verified");
-        }
-      } else {
-        msgCtxt.setVariable(varName("verified"), "false");
-        msgCtxt.setVariable(varName("reason"), "the signature was not verified");
+      // 3. get the verifier. With a jwks-uri, this fails here if the kid is unknown.
+      v.verifier = getVerifier(requiredAlgorithm, v.jwsh, msgCtxt);
+      if (v.cached != null && v.cached.verifier == v.verifier) {
+        v.verified = true;
+        outputs.set(msgCtxt, "verificationCached", "true");
+      } else if (v.cached != null) {
+        // cached, but verified with some other key
+        v.token = CompactToken.parse(jwt);
+        v.cached = null;
       }
+    }
+    return true;
+  }
 
-      // 4. Retrieve and parse the JWT claims
-      // diagnostics: emit all claims, formatted as json, into a variable
-      claims = signedJWT.getJWTClaimsSet();
-      json = claims.toJSONObject();
-
-      msgCtxt.setVariable(varName("claims"), json.toString());
-
-      // 5. emit some specific standard claims into their own context variables
-      // 5a. subject
-      String subject = claims.getSubject();
-      msgCtxt.setVariable(varName("subject"), subject);
-
-      // 5b. audience (optional)
-      List<String> auds = claims.getAudience();
-      if (auds != null) {
-        String[] audiences = auds.toArray(new String[0]);
-        if (audiences != null && audiences.length > 0) {
-          msgCtxt.setVariable(varName("audience"), StringUtils.join(audiences, ","));
-        } else {
-          msgCtxt.removeVariable(varName("audience"));
-        }
+  // 3a. verify the signature, if that is wanted and not already known
+  private static void checkSignature(TokenVerification v) {
+    if (v.verifier == null || v.verified) {
+      return;
+    }
+    try {
+      v.verified = v.verifier.verify(v.jwsh, v.token.getSigningInput(), v.token.getSignature());
+    } catch (Exception e) {
+      v.error = e;
+    }
+  }
+
+  // Returns true if the token is verified and valid.
+  private boolean finish(TokenVerification v, MessageContext msgCtxt, boolean wantVerify)
+      throws Exception {
+    if (v.error != null) {
+      throw v.error;
+    }
+    OutputVariables outputs = v.outputs;
+    boolean valid = true;
+    JWTClaimsSet claims = null;
+    if (wantVerify) {
+      if (v.verified) {
+        outputs.set(msgCtxt, "verified", "true");
       } else {
-        msgCtxt.removeVariable(varName("audience"));
+        outputs.set(msgCtxt, "verified", "false");
+        outputs.set(msgCtxt, "reason", "the signature could not be verified");
+        // don't decode claims that cannot be trusted
+        return false;
+      }
+    } else {
+      outputs.set(msgCtxt, "verified", "false");
+      outputs.set(msgCtxt, "reason", "the signature was not verified");
+    }
+
+    // 4. Retrieve and parse the JWT claims
+    // diagnostics: emit all claims, formatted as json, into a variable
+    String claimsJson = null;
+    if (v.cached != null) {
+      claims = v.cached.claims;
+      claimsJson = v.cached.claimsJson;
+    } else {
+      byte[] claimsBytes = v.token.decodePayload();
+      claims = JWTClaimsSet.parse(CompactToken.parseJsonObject(claimsBytes));
+      if (v.cacheVerifiedTokens || outputs.wants("claims")) {
+        claimsJson = new String(claimsBytes, StandardCharsets.UTF_8);
       }
+    }
 
-      // 5c. issuer
-      String issuer = claims.getIssuer();
-      msgCtxt.setVariable(varName("issuer"), issuer);
+    outputs.set(msgCtxt, "claims", claimsJson);
 
-      Date now = new Date();
-      recordTimeVariable(msgCtxt, now, "now");
+    // 5. emit some specific standard claims into their own context variables
+    // 5a. subject
+    String subject = claims.getSubject();
+    outputs.set(msgCtxt, "subject", subject);
 
-      long timeAllowance = getTimeAllowance(msgCtxt);
-      msgCtxt.setVariable(varName("timeAllowance"), Long.toString(timeAllowance, 10));
-      if (timeAllowance < 0L) {
-        msgCtxt.setVariable(varName("timeCheckDisabled"), "true");
+    // 5b. audience (optional)
+    List<String> auds = claims.getAudience();
+    if (auds != null) {
+      String[] audiences = auds.toArray(new String[0]);
+      if (audiences != null && audiences.length > 0) {
+        outputs.set(msgCtxt, "audience", StringUtils.join(audiences, ","));
+      } else {
+        outputs.remove(msgCtxt, "audience");
       }
+    } else {
+      outputs.remove(msgCtxt, "audience");
+    }
 
-      // 5d. issued-at
-      long ms, secsRemaining;
-      boolean ignoreIssuedAt = getIgnoreIssuedAt(msgCtxt);
-      if (!ignoreIssuedAt) {
-        Date t1 = claims.getIssueTime();
-        if (t1 != null) {
-          recordTimeVariable(msgCtxt, t1, "issueTime");
-          ms = now.getTime() - t1.getTime(); // positive means issued in the past
-          valid = (timeAllowance >= 0L) ? (ms + timeAllowance >= 0) : (ms >= 0);
-        }
+    // 5c. issuer
+    String issuer = claims.getIssuer();
+    outputs.set(msgCtxt, "issuer", issuer);
+
+    Date now = new Date();
+    recordTimeVariable(outputs, msgCtxt, now, "now");
+
+    long timeAllowance = getTimeAllowance(msgCtxt);
+    outputs.set(msgCtxt, "timeAllowance", Long.toString(timeAllowance, 10));
+    if (timeAllowance < 0L) {
+      outputs.set(msgCtxt, "timeCheckDisabled", "true");
+    }
+
+    // 5d. issued-at
+    long ms, secsRemaining;
+    boolean ignoreIssuedAt = getIgnoreIssuedAt(msgCtxt);
+    if (!ignoreIssuedAt) {
+      Date t1 = claims.getIssueTime();
+      if (t1 != null) {
+        recordTimeVariable(outputs, msgCtxt, t1, "issueTime");
+        ms = now.getTime() - t1.getTime(); // positive means issued in the past
+        valid = (timeAllowance >= 0L) ? (ms + timeAllowance >= 0) : (ms >= 0);
       }
+    }
 
-      // 5e. expiration
-      Date t2 = claims.getExpirationTime();
-      if (t2 != null) {
-        msgCtxt.setVariable(varName("hasExpiry"), "true");
-        recordTimeVariable(msgCtxt, t2, "expirationTime");
-
-        // 5f. elaborated values for expiry
-        ms = t2.getTime() - now.getTime(); // positive means still valid
-        secsRemaining = ms / 1000;
-        msgCtxt.setVariable(varName("secondsRemaining"), secsRemaining + "");
-        msgCtxt.setVariable(
-            varName("timeRemainingFormatted"),
+    // 5e. expiration
+    Date t2 = claims.getExpirationTime();
+    if (t2 != null) {
+      outputs.set(msgCtxt, "hasExpiry", "true");
+      recordTimeVariable(outputs, msgCtxt, t2, "expirationTime");
+
+      // 5f. elaborated values for expiry
+      ms = t2.getTime() - now.getTime(); // positive means still valid
+      secsRemaining = ms / 1000;
+      outputs.set(msgCtxt, "secondsRemaining", secsRemaining + "");
+      if (outputs.wants("timeRemainingFormatted")) {
+        outputs.set(
+            msgCtxt,
+            "timeRemainingFormatted",
             (ms < 0)
                 ? "-" + DurationFormatUtils.formatDurationHMS(0 - ms)
                 : DurationFormatUtils.formatDurationHMS(ms));
+      }
 
-        // 5g. computed boolean expired
-        boolean expired = (ms <= 0L);
-        msgCtxt.setVariable(varName("isActuallyExpired"), expired + "");
-        if (timeAllowance >= 0L) {
-          expired = (ms + timeAllowance <= 0L);
-          msgCtxt.setVariable(varName("hasExpiryAllowance"), "true");
-          msgCtxt.setVariable(varName("isExpired"), expired + "");
-          if (expired) {
-            valid = false;
-            msgCtxt.setVariable(varName("reason"), "the token is expired");
-          }
-        } else {
-          msgCtxt.setVariable(varName("hasExpiryAllowance"), "false");
-          msgCtxt.setVariable(varName("isExpired"), "false");
+      // 5g. computed boolean expired
+      boolean expired = (ms <= 0L);
+      outputs.set(msgCtxt, "isActuallyExpired", expired + "");
+      if (timeAllowance >= 0L) {
+        expired = (ms + timeAllowance <= 0L);
+        outputs.set(msgCtxt, "hasExpiryAllowance", "true");
+        outputs.set(msgCtxt, "isExpired", expired + "");
+        if (expired) {
+          valid = false;
+          outputs.set(msgCtxt, "reason", "the token is expired");
         }
       } else {
-        msgCtxt.setVariable(varName("isExpired"), "false");
-        msgCtxt.setVariable(varName("hasExpiry"), "false");
+        outputs.set(msgCtxt, "hasExpiryAllowance", "false");
+        outputs.set(msgCtxt, "isExpired", "false");
       }
+    } else {
+      outputs.set(msgCtxt, "isExpired", "false");
+      outputs.set(msgCtxt, "hasExpiry", "false");
+    }
 
-      // 5h. the id, if any
-      String jti = claims.getJWTID();
-      if (jti != null) {
-        msgCtxt.setVariable(varName("jti"), jti);
-      }
+    // 5h. the id, if any
+    String jti = claims.getJWTID();
+    if (jti != null) {
+      outputs.set(msgCtxt, "jti", jti);
+    }
 
-      // optional nbf (not-Before) (Sec 4.1.5)
-      Date t3 = claims.getNotBeforeTime();
+    // optional nbf (not-Before) (Sec 4.1.5)
+    Date t3 = claims.getNotBeforeTime();
 
-      // 6. validate not-before-time
-      if (t3 != null) {
-        // log whether valid or not
-        recordTimeVariable(msgCtxt, t3, "notBeforeTime");
-        if (valid) {
-          ms = now.getTime() - t3.getTime(); // positive means valid
-          msgCtxt.setVariable(varName("nbf_delta"), Long.toString(ms, 10));
-          if (timeAllowance >= 0L) {
-            if (ms + timeAllowance < 0L) {
-              msgCtxt.setVariable(varName("reason"), "notBeforeTime is in the future");
-              valid = false;
-            }
+    // 6. validate not-before-time
+    if (t3 != null) {
+      // log whether valid or not
+      recordTimeVariable(outputs, msgCtxt, t3, "notBeforeTime");
+      if (valid) {
+        ms = now.getTime() - t3.getTime(); // positive means valid
+        outputs.set(msgCtxt, "nbf_delta", Long.toString(ms, 10));
+        if (timeAllowance >= 0L) {
+          if (ms + timeAllowance < 0L) {
+            outputs.set(msgCtxt, "reason", "notBeforeTime is in the future");
+            valid = false;
           }
         }
       }
+    }
 
-      // 7. evaluate all the claims that have been configured as
-      // required on this token.
-      if (valid) {
-        Map<String, String> requiredClaims = requiredClaimsProperties();
-        if (requiredClaims.size() > 0) {
-          // iterate the map
-          for (Map.Entry<String, String> entry : requiredClaims.entrySet()) {
-            if (valid) {
-              String key = entry.getKey();
-              String expectedValue = entry.getValue();
-              expectedValue = resolvePropertyValue(expectedValue, msgCtxt);
-              // diagnostics: show the expected value
-              msgCtxt.setVariable(varName(key + "_expected"), expectedValue);
-
-              String[] parts = StringUtils.split(key, "_", 2);
-              // sanity check - is this a required claim?
-              if (parts.length == 2 && parts[0].equals("claim")) {
-                String claimName = parts[1];
-                // special case aud, which is always an array
-                if (claimName.equals("aud")) {
-                  if (auds.indexOf(expectedValue) == -1) {
-                    valid = false;
-                    msgCtxt.setVariable(varName("reason"), "audience violation");
-                  }
-                } else {
-                  // sometimes a List<String>, and sometimes not.
-                  Object providedValue = claims.getClaim(claimName);
-                  boolean match = false;
-                  if (providedValue == null) {
-                    msgCtxt.setVariable(
-                        varName("reason"),
-                        String.format(
-                            "mismatch in claim %s, expected:%s provided:null",
-                            claimName, expectedValue));
-                    valid = false;
-                  } else {
-                    String type = providedValue.getClass().getCanonicalName();
-                    if (type.equals("java.lang.String")) {
-                      // simple string match
-
-                      msgCtxt.setVariable(varName(key + "_provided"), providedValue);
-                      match = expectedValue.equals((String) providedValue);
-                      if (!match) {
-                        msgCtxt.setVariable(
-                            varName("reason"),
-                            String.format(
-                                "mismatch in claim %s, expected:%s provided:%s",
-                                claimName, expectedValue, providedValue));
-                        valid = false;
-                      }
-                    } else if (type.equals("net.minidev.json.JSONArray")) {
-                      // it's a list of Object (often String)
-                      net.minidev.json.JSONArray a = (net.minidev.json.JSONArray) providedValue;
-                      msgCtxt.setVariable(varName(key + "_provided"), StringUtils.join(a, "|"));
-                      match = false;
-                      for (Object item : a) {
-                        if (item.getClass().getCanonicalName().equals("java.lang.String")) {
-                          if (expectedValue.equals((String) item)) {
-                            match = true;
-                          }
-                        }
-                      }
-                      if (!match) {
-                        msgCtxt.setVariable(
-                            varName("reason"),
-                            String.format(
-                                "mismatch in claim %s, expected:%s provided:%s",
-                                claimName, expectedValue, StringUtils.join(a, "|")));
-                        valid = false;
-                      }
-                    } else {
-                      msgCtxt.setVariable(
-                          varName("reason"),
-                          String.format(
-                              "could not verify claim %s, expected:%s", claimName, expectedValue));
-                      valid = false;
+    // 7. evaluate all the claims that have been configured as
+    // required on this token.
+    if (valid) {
+      // all the properties that begin with claim_; the token is valid only
+      // if each of those claims checks out.
+      for (PolicyConfig.ClaimRule claim : config.claims) {
+        if (valid) {
+          String key = claim.property;
+          String claimName = claim.name;
+          String expectedValue = claim.resolve(msgCtxt);
+          // diagnostics: show the expected value
+          outputs.set(msgCtxt, key + "_expected", expectedValue);
+
+          // special case aud, which is always an array
+          if (claimName.equals("aud")) {
+            if (auds.indexOf(expectedValue) == -1) {
+              valid = false;
+              outputs.set(msgCtxt, "reason", "audience violation");
+            }
+          } else {
+            // sometimes a List<String>, and sometimes not.
+            Object providedValue = claims.getClaim(claimName);
+            boolean match = false;
+            if (providedValue == null) {
+              outputs.set(
+                  msgCtxt,
+                  "reason",
+                  String.format(
+                      "mismatch in claim %s, expected:%s provided:null",
+                      claimName, expectedValue));
+              valid = false;
+            } else {
+              String type = providedValue.getClass().getCanonicalName();
+              if (type.equals("java.lang.String")) {
+                // simple string match
+
+                outputs.set(msgCtxt, key + "_provided", providedValue);
+                match = expectedValue.equals((String) providedValue);
+                if (!match) {
+                  outputs.set(
+                      msgCtxt,
+                      "reason",
+                      String.format(
+                          "mismatch in claim %s, expected:%s provided:%s",
+                          claimName, expectedValue, providedValue));
+                  valid = false;
+                }
+              } else if (type.equals("net.minidev.json.JSONArray")) {
+                // it's a list of Object (often String)
+                net.minidev.json.JSONArray a = (net.minidev.json.JSONArray) providedValue;
+                outputs.set(msgCtxt, key + "_provided", StringUtils.join(a, "|"));
+                match = false;
+                for (Object item : a) {
+                  if (item.getClass().getCanonicalName().equals("java.lang.String")) {
+                    if (expectedValue.equals((String) item)) {
+                      match = true;
                     }
                   }
                 }
+                if (!match) {
+                  outputs.set(
+                      msgCtxt,
+                      "reason",
+                      String.format(
+                          "mismatch in claim %s, expected:%s provided:%s",
+                          claimName, expectedValue, StringUtils.join(a, "|")));
+                  valid = false;
+                }
+              } else {
+                outputs.set(
+                    msgCtxt,
+                    "reason",
+                    String.format(
+                        "could not verify claim %s, expected:%s", claimName, expectedValue));
+                valid = false;
               }
             }
           }
         }
       }
+    }
 
-      // 8. set context variables for custom claims if they are strings.
-      Map<String, Object> customClaims =
-          claims.getClaims().entrySet().stream()
-              .filter(x -> !JWTClaimsSet.getRegisteredNames().contains(x.getKey()))
-              .collect(Collectors.toMap(x -> x.getKey(), x -> x.getValue()));
-
-      if (customClaims.size() > 0) {
-        for (Map.Entry<String, Object> entry : customClaims.entrySet()) {
-          String key = entry.getKey();
-          Object value = entry.getValue();
-          if (value instanceof String) {
-            msgCtxt.setVariable(varName("claim_" + key), (String) value);
-          }
+    // 8. set context variables for custom claims if they are strings.
+    if (outputs.wantsAny("claim_")) {
+      for (Map.Entry<String, Object> entry : claims.getClaims().entrySet()) {
+        String key = entry.getKey();
+        Object value = entry.getValue();
+        if (value instanceof String && !JWTClaimsSet.getRegisteredNames().contains(key)) {
+          outputs.set(msgCtxt, "claim_" + key, (String) value);
         }
       }
+    }
+
+    // 9. remember a freshly verified signature, until the token expires
+    if (v.cacheVerifiedTokens && v.cached == null && v.verified && valid && t2 != null) {
+      long expiresAtMillis = t2.getTime() - Math.max(timeAllowance, 0L);
+      if (expiresAtMillis > now.getTime()) {
+        verifiedTokens.put(
+            v.tokenDigest,
+            new VerifiedToken(
+                v.jwsh, v.headerJson, claims, claimsJson, v.verifier, expiresAtMillis));
+      }
+    }
 
-      // 9. finally, set the valid context variable
-      msgCtxt.setVariable(varName("isValid"), (valid && verified) + "");
-      if ((valid && verified) || continueOnError || !wantVerify) {
+    return valid && v.verified;
+  }
+
+  public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt) {
+    // The validity of the JWT depends on:
+    // - the structure. it must be valid.
+    // - the algorithm. must match what is required.
+    // - the signature. It must verify.
+    // - the times. Must not be expired, also respect "notbefore".
+    // - the enforced claims. They all must match.
+    msgCtxt.setVariable(varName("isValid"), "false");
+    ExecutionResult result = ExecutionResult.ABORT;
+    boolean continueOnError = false;
+    boolean wantVerify = getWantVerify(msgCtxt);
+    OutputVariables outputs = getOutputVariables(msgCtxt);
+    try {
+      continueOnError = getContinueOnError(msgCtxt);
+      if (this.properties.containsKey("jwts")) {
+        return executeBatch(msgCtxt, outputs, wantVerify, continueOnError);
+      }
+      // 1. read the JWT
+      TokenVerification v = new TokenVerification(getJwt(msgCtxt), varName(""), outputs);
+      if (!prepare(v, msgCtxt, wantVerify)) {
+        return (continueOnError) ? ExecutionResult.SUCCESS : ExecutionResult.ABORT;
+      }
+      checkSignature(v);
+      boolean valid = finish(v, msgCtxt, wantVerify);
+
+      // 10. finally, set the valid context variable
+      msgCtxt.setVariable(varName("isValid"), valid + "");
+      if (valid || continueOnError || !wantVerify) {
         result = ExecutionResult.SUCCESS;
       }
     } catch (IllegalStateException exc1) {
@@ -405,10 +672,7 @@ public class JwtVerifierCallout extends VerifierCallout implements Execution {
         result = ExecutionResult.SUCCESS;
       }
     } catch (Exception e) {
-      if (debug) {
-        String stacktrace = getStackTraceAsString(e);
-        msgCtxt.setVariable(varName("stacktrace"), stacktrace);
-      }
+      reportException(e, msgCtxt, varName(""));
       setExceptionVariables(e, msgCtxt);
       if (continueOnError) {
         result = ExecutionResult.SUCCESS;
@@ -416,4 +680,85 @@ public class JwtVerifierCallout extends VerifierCallout implements Execution {
     }
     return result;
   }
+
+  // Verifies each of the tokens in the jwts property with the same
+  // configuration, setting the variables for the token at position i (from
+  // 1) with the prefix jwt_i_. A token passes if it would have passed as the
+  // jwt property; the callout succeeds if all of them pass.
+  private ExecutionResult executeBatch(
+      MessageContext msgCtxt,
+      OutputVariables outputs,
+      boolean wantVerify,
+      boolean continueOnError)
+      throws Exception {
+    List<String> jwts = getJwts(msgCtxt);
+    msgCtxt.setVariable(varName("count"), Integer.toString(jwts.size()));
+
+    List<TokenVerification> verifications = new ArrayList<TokenVerification>();
+    List<TokenVerification> prepared = new ArrayList<TokenVerification>();
+    for (int i = 0; i < jwts.size(); i++) {
+      String prefix = varName((i + 1) + "_");
+      TokenVerification v = new TokenVerification(jwts.get(i), prefix, outputs.withPrefix(prefix));
+      verifications.add(v);
+      msgCtxt.setVariable(prefix + "isValid", "false");
+      try {
+        if (prepare(v, msgCtxt, wantVerify)) {
+          prepared.add(v);
+        }
+      } catch (Exception e) {
+        setTokenExceptionVariables(e, msgCtxt, prefix);
+      }
+    }
+
+    checkSignatures(prepared, getParallelVerify(msgCtxt));
+
+    int validCount = 0;
+    boolean allPassed = true;
+    for (TokenVerification v : verifications) {
+      boolean passed = false;
+      if (prepared.contains(v)) {
+        try {
+          boolean valid = finish(v, msgCtxt, wantVerify);
+          msgCtxt.setVariable(v.prefix + "isValid", valid + "");
+          if (valid) {
+            validCount++;
+          }
+          passed = valid || !wantVerify;
+        } catch (Exception e) {
+          setTokenExceptionVariables(e, msgCtxt, v.prefix);
+        }
+      }
+      allPassed = allPassed && passed;
+    }
+    msgCtxt.setVariable(varName("validCount"), Integer.toString(validCount));
+    msgCtxt.setVariable(varName("isValid"), (validCount == jwts.size()) + "");
+    return (allPassed || continueOnError) ? ExecutionResult.SUCCESS : ExecutionResult.ABORT;
+  }
+
+  private void setTokenExceptionVariables(Exception e, MessageContext msgCtxt, String prefix) {
+    if (!(e instanceof IllegalStateException)) {
+      reportException(e, msgCtxt, prefix);
+    }
+    setExceptionVariables(e, msgCtxt, prefix);
+  }
+
+  // The signature checks are the expensive part of verifying a batch. The
+  // calling thread checks the first token while the pool checks the rest.
+  private static void checkSignatures(List<TokenVerification> verifications, boolean parallel)
+      throws InterruptedException, ExecutionException {
+    if (!parallel || verifications.size() < 2) {
+      for (TokenVerification v : verifications) {
+        checkSignature(v);
+      }
+      return;
+    }
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (final TokenVerification v : verifications.subList(1, verifications.size())) {
+      futures.add(batchExecutor.submit(() -> checkSignature(v)));
+    }
+    checkSignature(verifications.get(0));
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
 }
@@ -0,0 +1,100 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * KeyFingerprint
+ *
+ * A SHA-256 digest of key material, for use as a cache key. Caches keyed
+ * this way hash and compare 32 bytes rather than a PEM string, and do not
+ * hold the secret or the PEM itself as a key.
+ *
+ * The parts are length-prefixed before digesting, so ("ab","c") and
+ * ("a","bc") give different fingerprints.
+ *
+ */
+public final class KeyFingerprint {
+  static final int SIZE_BYTES = 32;
+
+  private final byte[] digest;
+  private final int hashCode;
+
+  private KeyFingerprint(byte[] digest) {
+    this.digest = digest;
+    this.hashCode = Arrays.hashCode(digest);
+  }
+
+  public static KeyFingerprint of(String... parts) {
+    byte[][] bytes = new byte[parts.length][];
+    for (int i = 0; i < parts.length; i++) {
+      bytes[i] = (parts[i] == null) ? null : parts[i].getBytes(StandardCharsets.UTF_8);
+    }
+    return of(bytes);
+  }
+
+  public static KeyFingerprint of(byte[]... parts) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // every JRE has SHA-256
+    }
+    for (byte[] part : parts) {
+      // -1 marks a null part, distinct from an empty one
+      int length = (part == null) ? -1 : part.length;
+      md.update(
+          new byte[] {
+            (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length
+          });
+      if (part != null) {
+        md.update(part);
+      }
+    }
+    return new KeyFingerprint(md.digest());
+  }
+
+  // a fingerprint of the same key material, for another use of it
+  KeyFingerprint forKind(String kind) {
+    return of(kind.getBytes(StandardCharsets.UTF_8), digest);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof KeyFingerprint)) return false;
+    KeyFingerprint other = (KeyFingerprint) o;
+    return hashCode == other.hashCode && MessageDigest.isEqual(digest, other.digest);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("KeyFingerprint:");
+    for (int i = 0; i < 4; i++) {
+      sb.append(String.format("%02x", digest[i]));
+    }
+    return sb.toString();
+  }
+}
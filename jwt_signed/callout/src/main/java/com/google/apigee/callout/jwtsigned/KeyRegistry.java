@@ -0,0 +1,189 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.nimbusds.jose.JWEDecrypter;
+import com.nimbusds.jose.JWEEncrypter;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import com.nimbusds.jose.crypto.RSADecrypter;
+import com.nimbusds.jose.crypto.RSAEncrypter;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * KeyRegistry
+ *
+ * The signers, verifiers, encrypters and decrypters built from configured
+ * key material, shared by all instances of the callouts in the JVM. Every
+ * policy that uses the same key gets the same parsed key, so a key is
+ * parsed once, not once per policy (or per redeploy), and is held in
+ * memory once.
+ *
+ * Entries are keyed by a KeyFingerprint, a digest of the key material, so
+ * the registry holds neither secrets nor PEM strings, nor anything from the
+ * request that supplied them.
+ *
+ * The registry is bounded by an estimate of the memory the keys use,
+ * rather than by a count of entries, because an RSA private key is much
+ * larger than an HMAC secret.
+ *
+ */
+public class KeyRegistry {
+  static final long MAX_WEIGHT_BYTES = 32L * 1024 * 1024;
+  static final long IDLE_EXPIRY_MINUTES = 10;
+
+  private static final KeyRegistry defaultInstance = new KeyRegistry(MAX_WEIGHT_BYTES);
+
+  // for the CEKs and IVs of the encrypters. Without it, Nimbus creates and
+  // seeds a new SecureRandom for each encryption.
+  private static final SecureRandom secureRandom = new SecureRandom();
+
+  // Values are JWSSigner, JWSVerifier, JWEEncrypter or JWEDecrypter. The
+  // first part digested into each fingerprint names the kind of key, so the
+  // kinds never collide.
+  private final Cache<KeyFingerprint, Object> cache;
+
+  KeyRegistry(long maxWeightBytes) {
+    cache =
+        CacheBuilder.newBuilder()
+            .concurrencyLevel(4)
+            .maximumWeight(maxWeightBytes)
+            .weigher((KeyFingerprint key, Object value) -> 64 + estimatedSize(value))
+            .expireAfterAccess(IDLE_EXPIRY_MINUTES, TimeUnit.MINUTES)
+            .build();
+  }
+
+  public static KeyRegistry getDefault() {
+    return defaultInstance;
+  }
+
+  public JWSVerifier getMacVerifier(final String secret) throws ExecutionException {
+    if (secret == null) {
+      throw new IllegalArgumentException("the key is null");
+    }
+    return (JWSVerifier)
+        cache.get(
+            KeyFingerprint.of("mac-verifier", secret),
+            // NB: this will throw if the string is not at least 16 chars long
+            () -> new MACVerifier(secret.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public JWSSigner getMacSigner(final String secret) throws ExecutionException {
+    if (secret == null) {
+      throw new IllegalArgumentException("the key is null");
+    }
+    return (JWSSigner)
+        cache.get(
+            KeyFingerprint.of("mac-signer", secret),
+            // NB: this will throw if the string is not at least 16 chars long
+            () -> new MACSigner(secret.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public JWSVerifier getRsaVerifier(final PublicKeySource source) throws ExecutionException {
+    return (JWSVerifier)
+        cache.get(
+            source.getFingerprint(),
+            () -> {
+              RSAPublicKey publicKey = (RSAPublicKey) source.getPublicKey();
+              if (publicKey == null) {
+                throw new IllegalArgumentException("there was no public key specified.");
+              }
+              return new RSASSAVerifier(publicKey);
+            });
+  }
+
+  public JWSSigner getRsaSigner(final PrivateKeyInfo info) throws ExecutionException {
+    return (JWSSigner)
+        cache.get(
+            info.getFingerprint(),
+            () -> new RSASSASigner((RSAPrivateKey) SignerCallout.generatePrivateKey(info)));
+  }
+
+  // The same key material may also verify signatures, so the fingerprint is
+  // qualified by what the entry is for.
+  public JWEEncrypter getRsaEncrypter(final PublicKeySource source) throws ExecutionException {
+    return (JWEEncrypter)
+        cache.get(
+            source.getFingerprint().forKind("rsa-encrypter"),
+            () -> {
+              PublicKey publicKey = source.getPublicKey();
+              if (!(publicKey instanceof RSAPublicKey)) {
+                throw new IllegalArgumentException("there was no RSA public key specified.");
+              }
+              RSAEncrypter encrypter = new RSAEncrypter((RSAPublicKey) publicKey);
+              encrypter.getJCAContext().setSecureRandom(secureRandom);
+              return encrypter;
+            });
+  }
+
+  public JWEDecrypter getRsaDecrypter(final PrivateKeyInfo info) throws ExecutionException {
+    return (JWEDecrypter)
+        cache.get(
+            info.getFingerprint().forKind("rsa-decrypter"),
+            () -> new RSADecrypter(SignerCallout.generatePrivateKey(info)));
+  }
+
+  long size() {
+    return cache.size();
+  }
+
+  // for measuring the cost of a cold start
+  void clear() {
+    cache.invalidateAll();
+  }
+
+  // a rough estimate of the bytes held by a signer, verifier, encrypter or decrypter
+  private static int estimatedSize(Object value) {
+    if (value instanceof RSASSAVerifier) {
+      return publicKeySize(((RSASSAVerifier) value).getPublicKey());
+    }
+    if (value instanceof RSAEncrypter) {
+      return publicKeySize(((RSAEncrypter) value).getPublicKey());
+    }
+    if (value instanceof RSASSASigner) {
+      return privateKeySize(((RSASSASigner) value).getPrivateKey());
+    }
+    if (value instanceof RSADecrypter) {
+      return privateKeySize(((RSADecrypter) value).getPrivateKey());
+    }
+    return 256;
+  }
+
+  private static int publicKeySize(RSAPublicKey publicKey) {
+    return 512 + (publicKey.getModulus().bitLength() / 8) * 2;
+  }
+
+  private static int privateKeySize(PrivateKey privateKey) {
+    if (!(privateKey instanceof RSAPrivateKey)) {
+      return 1024;
+    }
+    // a CRT private key holds about five modulus-sized numbers
+    return 1024 + (((RSAPrivateKey) privateKey).getModulus().bitLength() / 8) * 5;
+  }
+}
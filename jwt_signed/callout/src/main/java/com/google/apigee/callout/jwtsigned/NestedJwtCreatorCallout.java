@@ -0,0 +1,124 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.execution.IOIntensive;
+import com.apigee.flow.message.MessageContext;
+import com.nimbusds.jose.JWEEncrypter;
+import com.nimbusds.jose.JWEHeader;
+import com.nimbusds.jose.JWEObject;
+import com.nimbusds.jose.Payload;
+import com.nimbusds.jwt.SignedJWT;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+
+/*
+ * NestedJwtCreatorCallout
+ *
+ * Creates a signed JWT, exactly as JwtCreatorCallout does, then encrypts it
+ * for a recipient, in the same pass, into a JWE with cty "JWT", per RFC 7519
+ * section 5.2. The signed JWT goes straight into the JWE as its plaintext;
+ * it is never set into a context variable and read back.
+ *
+ * In addition to the properties of JwtCreatorCallout:
+ *
+ *   encryption-public-key  - the recipient's RSA public key, PEM-encoded
+ *   encryption-certificate - or, the recipient's certificate
+ *   encryption-kid         - optional, the kid for the JWE header
+ *   key-encryption         - RSA-OAEP-256 (the default) or RSA-OAEP
+ *   content-encryption     - A256GCM (the default), A128GCM,
+ *                            A128CBC-HS256 or A256CBC-HS512
+ *
+ * The encrypter, like the signer, comes from the KeyRegistry.
+ *
+ */
+@IOIntensive
+public class NestedJwtCreatorCallout extends JwtCreatorCallout {
+
+  // the recipient's key, when the configuration alone determines it; else null
+  private final PublicKeySource staticEncryptionKeySource;
+
+  public NestedJwtCreatorCallout(Map properties) {
+    super(properties);
+    staticEncryptionKeySource = getStaticEncryptionKeySource();
+  }
+
+  private PublicKeySource getStaticEncryptionKeySource() {
+    for (String name : new String[] {"encryption-public-key", "encryption-certificate"}) {
+      String value = (String) this.properties.get(name);
+      if (value != null && !PolicyConfig.isLiteral(value)) {
+        return null;
+      }
+    }
+    try {
+      return getEncryptionKeySource(null);
+    } catch (Exception e) {
+      // not configured, or misconfigured; the request path reports it
+      return null;
+    }
+  }
+
+  private PublicKeySource getEncryptionKeySource(MessageContext msgCtxt) {
+    String publicKeyString = (String) this.properties.get("encryption-public-key");
+    if (publicKeyString != null) {
+      publicKeyString = resolvePropertyValue(publicKeyString, msgCtxt);
+      if (StringUtils.isBlank(publicKeyString)) {
+        throw new IllegalStateException("encryption-public-key resolves to empty.");
+      }
+      return PublicKeySource.fromString(publicKeyString);
+    }
+    String certString = (String) this.properties.get("encryption-certificate");
+    if (certString != null) {
+      certString = resolvePropertyValue(certString, msgCtxt);
+      if (StringUtils.isBlank(certString)) {
+        throw new IllegalStateException("encryption-certificate resolves to empty.");
+      }
+      return PublicKeySource.fromCertificate(certString);
+    }
+    throw new IllegalStateException(
+        "must specify encryption-public-key or encryption-certificate");
+  }
+
+  private JWEEncrypter getEncrypter(MessageContext msgCtxt) throws Exception {
+    PublicKeySource source =
+        (staticEncryptionKeySource != null)
+            ? staticEncryptionKeySource
+            : getEncryptionKeySource(msgCtxt);
+    return KeyRegistry.getDefault().getRsaEncrypter(source);
+  }
+
+  private String getEncryptionKeyId(MessageContext msgCtxt) {
+    String keyid = (String) this.properties.get("encryption-kid");
+    if (StringUtils.isBlank(keyid)) return null;
+    keyid = resolvePropertyValue(keyid, msgCtxt);
+    if (StringUtils.isBlank(keyid)) return null;
+    return keyid;
+  }
+
+  @Override
+  protected String serialize(SignedJWT signedJWT, MessageContext msgCtxt) throws Exception {
+    JWEHeader.Builder headerBuilder =
+        new JWEHeader.Builder(
+                NestedJwtSettings.getKeyEncryptionAlgorithm(this, msgCtxt),
+                NestedJwtSettings.getContentEncryptionMethod(this, msgCtxt))
+            .contentType("JWT");
+    String kid = getEncryptionKeyId(msgCtxt);
+    if (kid != null) headerBuilder.keyID(kid);
+    JWEObject jwe = new JWEObject(headerBuilder.build(), new Payload(signedJWT));
+    jwe.encrypt(getEncrypter(msgCtxt));
+    return jwe.serialize();
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.message.MessageContext;
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JWEAlgorithm;
+import org.apache.commons.lang3.StringUtils;
+
+/*
+ * NestedJwtSettings
+ *
+ * The JWE algorithms of a nested JWT, which the creator and the verifier
+ * read from the same properties: key-encryption and content-encryption.
+ *
+ */
+final class NestedJwtSettings {
+  private NestedJwtSettings() {}
+
+  // The key management algorithm, from the key-encryption property. Only
+  // the RSA-OAEP variants are allowed.
+  static JWEAlgorithm getKeyEncryptionAlgorithm(JoseCalloutBase callout, MessageContext msgCtxt) {
+    String value = resolve(callout, "key-encryption", msgCtxt);
+    if (StringUtils.isBlank(value)) {
+      return JWEAlgorithm.RSA_OAEP_256;
+    }
+    value = value.trim();
+    if (value.equals(JWEAlgorithm.RSA_OAEP_256.getName())) {
+      return JWEAlgorithm.RSA_OAEP_256;
+    }
+    if (value.equals(JWEAlgorithm.RSA_OAEP.getName())) {
+      return JWEAlgorithm.RSA_OAEP;
+    }
+    throw new IllegalStateException("unsupported key-encryption: '" + value + "'");
+  }
+
+  // The content encryption method, from the content-encryption property.
+  static EncryptionMethod getContentEncryptionMethod(
+      JoseCalloutBase callout, MessageContext msgCtxt) {
+    String value = resolve(callout, "content-encryption", msgCtxt);
+    if (StringUtils.isBlank(value)) {
+      return EncryptionMethod.A256GCM;
+    }
+    EncryptionMethod method = EncryptionMethod.parse(value.trim());
+    if (!method.equals(EncryptionMethod.A128GCM)
+        && !method.equals(EncryptionMethod.A256GCM)
+        && !method.equals(EncryptionMethod.A128CBC_HS256)
+        && !method.equals(EncryptionMethod.A256CBC_HS512)) {
+      throw new IllegalStateException("unsupported content-encryption: '" + value.trim() + "'");
+    }
+    return method;
+  }
+
+  private static String resolve(JoseCalloutBase callout, String name, MessageContext msgCtxt) {
+    String value = (String) callout.properties.get(name);
+    return (value == null) ? null : callout.resolvePropertyValue(value, msgCtxt);
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.execution.IOIntensive;
+import com.apigee.flow.message.MessageContext;
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWEDecrypter;
+import com.nimbusds.jose.JWEHeader;
+import com.nimbusds.jose.JWEObject;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+
+/*
+ * NestedJwtVerifierCallout
+ *
+ * Decrypts a nested JWT, a JWE with cty "JWT" as NestedJwtCreatorCallout
+ * produces, then verifies the signed JWT inside it, in the same pass,
+ * exactly as JwtVerifierCallout does. The plaintext goes straight to the
+ * verifier; it is never set into a context variable and read back.
+ *
+ * In addition to the properties of JwtVerifierCallout:
+ *
+ *   decryption-private-key          - the RSA private key, PEM-encoded
+ *   decryption-private-key-password - optional, the password for it
+ *   key-encryption                  - the required alg, RSA-OAEP-256 (the
+ *                                     default) or RSA-OAEP
+ *   content-encryption              - the required enc, A256GCM (the
+ *                                     default), A128GCM, A128CBC-HS256 or
+ *                                     A256CBC-HS512
+ *
+ * A token with some other alg or enc, or that does not decrypt, is not
+ * valid, and the reason says why. The decrypter, like the verifier, comes
+ * from the KeyRegistry.
+ *
+ */
+@IOIntensive
+public class NestedJwtVerifierCallout extends JwtVerifierCallout {
+
+  // the decryption key, when the configuration alone determines it; else null
+  private final PrivateKeyInfo staticDecryptionKeyInfo;
+
+  public NestedJwtVerifierCallout(Map properties) {
+    super(properties);
+    staticDecryptionKeyInfo = getStaticDecryptionKeyInfo();
+  }
+
+  private PrivateKeyInfo getStaticDecryptionKeyInfo() {
+    for (String name :
+        new String[] {"decryption-private-key", "decryption-private-key-password"}) {
+      String value = (String) this.properties.get(name);
+      if (value != null && !PolicyConfig.isLiteral(value)) {
+        return null;
+      }
+    }
+    try {
+      return getDecryptionKeyInfo(null);
+    } catch (Exception e) {
+      // not configured, or misconfigured; the request path reports it
+      return null;
+    }
+  }
+
+  private PrivateKeyInfo getDecryptionKeyInfo(MessageContext msgCtxt) {
+    String privateKey = (String) this.properties.get("decryption-private-key");
+    if (StringUtils.isBlank(privateKey)) {
+      throw new IllegalStateException("decryption-private-key is not specified or is empty.");
+    }
+    privateKey = resolvePropertyValue(privateKey, msgCtxt);
+    if (StringUtils.isBlank(privateKey)) {
+      throw new IllegalStateException("decryption-private-key resolves to empty.");
+    }
+    // clear any leading whitespace on each line
+    privateKey = privateKey.trim().replaceAll("([\\r|\\n] +)", "\n");
+
+    String password = (String) this.properties.get("decryption-private-key-password");
+    if (!StringUtils.isBlank(password)) {
+      password = resolvePropertyValue(password, msgCtxt);
+    }
+    if (StringUtils.isBlank(password)) {
+      password = null;
+    }
+    return new PrivateKeyInfo(privateKey.getBytes(StandardCharsets.UTF_8), password);
+  }
+
+  private JWEDecrypter getDecrypter(MessageContext msgCtxt) throws Exception {
+    PrivateKeyInfo info =
+        (staticDecryptionKeyInfo != null) ? staticDecryptionKeyInfo : getDecryptionKeyInfo(msgCtxt);
+    return KeyRegistry.getDefault().getRsaDecrypter(info);
+  }
+
+  @Override
+  String unwrap(String token, OutputVariables outputs, MessageContext msgCtxt) throws Exception {
+    JWEObject jwe;
+    try {
+      jwe = JWEObject.parse(token);
+    } catch (java.text.ParseException pe1) {
+      outputs.set(msgCtxt, "reason", "the JWE did not parse.");
+      return null;
+    }
+    JWEHeader header = jwe.getHeader();
+    outputs.set(msgCtxt, "jweheader", header.toString());
+
+    // check that the provided algorithms match what is required
+    JWEAlgorithm requiredAlg = NestedJwtSettings.getKeyEncryptionAlgorithm(this, msgCtxt);
+    EncryptionMethod requiredEnc = NestedJwtSettings.getContentEncryptionMethod(this, msgCtxt);
+    if (!requiredAlg.equals(header.getAlgorithm())
+        || !requiredEnc.equals(header.getEncryptionMethod())) {
+      outputs.set(
+          msgCtxt,
+          "reason",
+          String.format(
+              "Encryption algorithm mismatch. provided=%s/%s, required=%s/%s",
+              header.getAlgorithm(), header.getEncryptionMethod(), requiredAlg, requiredEnc));
+      return null;
+    }
+    if (header.getContentType() == null || !header.getContentType().equalsIgnoreCase("JWT")) {
+      outputs.set(msgCtxt, "reason", "the JWE does not contain a JWT.");
+      return null;
+    }
+
+    try {
+      jwe.decrypt(getDecrypter(msgCtxt));
+    } catch (JOSEException e) {
+      outputs.set(msgCtxt, "reason", "the JWE could not be decrypted.");
+      return null;
+    }
+    // the plaintext is the compact signed JWT, which is all ASCII
+    return new String(jwe.getPayload().toBytes(), StandardCharsets.US_ASCII);
+  }
+}
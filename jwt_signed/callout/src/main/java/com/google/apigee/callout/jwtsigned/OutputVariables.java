@@ -0,0 +1,123 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
+
+/*
+ * OutputVariables
+ *
+ * The context variables a policy wants the callout to set, from the
+ * output-variables property. That is "all" (the default), "minimal" (just
+ * isValid and reason), or a comma-separated list of names without the
+ * prefix, like "isValid, reason, subject, claim_scope". A name that ends in
+ * a star matches every name that starts with what precedes it, so
+ * "claim_*" selects all the claim variables. "minimal" may appear in the list.
+ *
+ * The callout checks wants() before it computes a value that is expensive
+ * to produce, like a formatted date, and set() drops anything else that
+ * was not asked for.
+ *
+ */
+final class OutputVariables {
+  private final String prefix;
+  // null means all
+  private final Set<String> names;
+  private final String[] namePrefixes;
+
+  private OutputVariables(String prefix, Set<String> names, String[] namePrefixes) {
+    this.prefix = prefix;
+    this.names = names;
+    this.namePrefixes = namePrefixes;
+  }
+
+  static OutputVariables all(String prefix) {
+    return new OutputVariables(prefix, null, new String[0]);
+  }
+
+  static OutputVariables parse(String prefix, String spec) {
+    if (StringUtils.isBlank(spec) || spec.trim().equals("all")) {
+      return all(prefix);
+    }
+    Set<String> names = new HashSet<String>();
+    List<String> namePrefixes = new ArrayList<String>();
+    for (String name : StringUtils.split(spec, ", ")) {
+      if (name.equals("all")) {
+        return all(prefix);
+      }
+      if (name.equals("minimal")) {
+        names.add("isValid");
+        names.add("reason");
+      } else if (name.endsWith("*")) {
+        namePrefixes.add(name.substring(0, name.length() - 1));
+      } else {
+        names.add(name);
+      }
+    }
+    return new OutputVariables(prefix, names, namePrefixes.toArray(new String[0]));
+  }
+
+  // the same selection, for variables with another prefix
+  OutputVariables withPrefix(String prefix) {
+    return new OutputVariables(prefix, names, namePrefixes);
+  }
+
+  boolean wants(String name) {
+    if (names == null || names.contains(name)) {
+      return true;
+    }
+    for (String namePrefix : namePrefixes) {
+      if (name.startsWith(namePrefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean wantsAny(String namePrefix) {
+    if (names == null) {
+      return true;
+    }
+    for (String name : names) {
+      if (name.startsWith(namePrefix)) {
+        return true;
+      }
+    }
+    for (String p : namePrefixes) {
+      if (p.startsWith(namePrefix) || namePrefix.startsWith(p)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void set(MessageContext msgCtxt, String name, Object value) {
+    if (wants(name)) {
+      msgCtxt.setVariable(prefix + name, value);
+    }
+  }
+
+  void remove(MessageContext msgCtxt, String name) {
+    if (wants(name)) {
+      msgCtxt.removeVariable(prefix + name);
+    }
+  }
+}
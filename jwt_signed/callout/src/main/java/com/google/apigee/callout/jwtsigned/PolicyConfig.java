@@ -0,0 +1,146 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * PolicyConfig
+ *
+ * The parts of the policy configuration that can be worked out once, when
+ * the callout is constructed, rather than on every request. A value that
+ * refers to a context variable can only be known at runtime, so it is left
+ * null here and the callout resolves it per request as before.
+ *
+ * A static value that is invalid is recorded, not thrown, so that the
+ * callout reports the error on each request in the same way it always has.
+ *
+ */
+final class PolicyConfig {
+  // validated, if the algorithm property is a literal; else null
+  final String algorithm;
+  // set if the algorithm property is a literal and is not valid
+  final String algorithmError;
+  // the claim_* properties, in the order of the properties map
+  final List<ClaimRule> claims;
+  // parsed, if the timeAllowance property is a literal number; else null
+  final Long timeAllowance;
+
+  private PolicyConfig(
+      String algorithm,
+      String algorithmError,
+      List<ClaimRule> claims,
+      Long timeAllowance) {
+    this.algorithm = algorithm;
+    this.algorithmError = algorithmError;
+    this.claims = claims;
+    this.timeAllowance = timeAllowance;
+  }
+
+  static boolean isLiteral(String value) {
+    return value != null && value.indexOf('{') == -1;
+  }
+
+  static boolean isSupportedAlgorithm(String algorithm) {
+    return algorithm.equals("HS256") || algorithm.equals("RS256") || algorithm.equals("PS256");
+  }
+
+  static PolicyConfig from(Map<String, String> properties) {
+    String algorithm = null;
+    String algorithmError = null;
+    String value = properties.get("algorithm");
+    if (value != null && isLiteral(value)) {
+      value = value.trim();
+      if (value.equals("")) {
+        algorithmError = "algorithm is not specified or is empty.";
+      } else if (!isSupportedAlgorithm(value)) {
+        algorithmError = "unsupported algorithm: '" + value + "'";
+      } else {
+        algorithm = value;
+      }
+    }
+
+    List<ClaimRule> claims = new ArrayList<ClaimRule>();
+    for (Map.Entry<String, String> entry : properties.entrySet()) {
+      if (entry.getKey().startsWith("claim_") && entry.getValue() != null) {
+        claims.add(new ClaimRule(entry.getKey(), entry.getValue()));
+      }
+    }
+
+    Long timeAllowance = null;
+    value = properties.get("timeAllowance");
+    if (isLiteral(value) && !value.trim().equals("")) {
+      try {
+        timeAllowance = Long.parseLong(value, 10);
+      } catch (NumberFormatException e) {
+        // leave it to the request path, which reports it
+      }
+    }
+
+    return new PolicyConfig(
+        algorithm, algorithmError, Collections.unmodifiableList(claims), timeAllowance);
+  }
+
+  /*
+   * One claim_* property: the claim name, and the value either as a literal
+   * or as a template compiled once here. Only a templated value needs any
+   * work per request.
+   */
+  static final class ClaimRule {
+    // the property name, eg claim_sub
+    final String property;
+    // the claim name, eg sub or json_extra
+    final String name;
+    // the property value as configured
+    final String spec;
+    // null if the value is a literal
+    private final PropertyTemplate template;
+    // set if the value is a single reference, which may resolve to a non-string
+    private final String variable;
+
+    ClaimRule(String property, String spec) {
+      this.property = property;
+      this.name = property.substring("claim_".length());
+      this.spec = spec;
+      PropertyTemplate t = PropertyTemplate.compile(spec);
+      this.template = t.isLiteral() ? null : t;
+      String v = t.getSoleVariable();
+      this.variable = (v != null && v.indexOf('[') == -1) ? v : null;
+    }
+
+    boolean isLiteral() {
+      return template == null;
+    }
+
+    // the value as a string, with any variables resolved
+    String resolve(MessageContext msgCtxt) {
+      return (template == null) ? spec : template.resolve(msgCtxt);
+    }
+
+    // The value, which may be a non-string, for example an array of
+    // strings, if it is exactly one variable reference.
+    Object resolveToObject(MessageContext msgCtxt) {
+      if (variable != null) {
+        return msgCtxt.getVariable(variable);
+      }
+      return resolve(msgCtxt);
+    }
+  }
+}
@@ -1,15 +1,24 @@
 package com.google.apigee.callout.jwtsigned;
 
-import com.apigee.flow.message.MessageContext;
+import java.nio.charset.StandardCharsets;
 
 public class PrivateKeyInfo {
-        public PrivateKeyInfo(MessageContext msgCtxt, byte[] keyBytes, String password) {
-            this.msgCtxt = msgCtxt;
-            this.keyBytes = keyBytes;
-            this.password = password;
-        }
-        //public PrivateKeyInfo(byte[] bytes, String p) { keyBytes = bytes; password = p;}
-        public MessageContext msgCtxt;
-        public byte[] keyBytes;
-        public String password;
+  public PrivateKeyInfo(byte[] keyBytes, String password) {
+    this.keyBytes = keyBytes;
+    this.password = password;
+  }
+
+  public byte[] keyBytes;
+  public String password;
+  private KeyFingerprint fingerprint;
+
+  // the password is part of the fingerprint; a wrong one must not hit a cached key
+  public KeyFingerprint getFingerprint() {
+    if (fingerprint == null) {
+      byte[] passwordBytes = (password == null) ? null : password.getBytes(StandardCharsets.UTF_8);
+      fingerprint =
+          KeyFingerprint.of("rsa-private".getBytes(StandardCharsets.UTF_8), keyBytes, passwordBytes);
     }
+    return fingerprint;
+  }
+}
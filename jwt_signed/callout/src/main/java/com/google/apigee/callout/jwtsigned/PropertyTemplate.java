@@ -0,0 +1,122 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * PropertyTemplate
+ *
+ * A property value, parsed once into literal segments and references to
+ * context variables, like ABC-{apikey}. A reference is a pair of curlies
+ * around a name that contains no curly, space, or double-quote; anything
+ * else, including a stray curly, is literal text. Resolving a template
+ * is a single pass over the segments, and a value with no references
+ * resolves to itself.
+ *
+ */
+public final class PropertyTemplate {
+  private final String spec;
+  // literals.length == variables.length + 1; literal i precedes variable i
+  private final String[] literals;
+  private final String[] variables;
+
+  private PropertyTemplate(String spec, String[] literals, String[] variables) {
+    this.spec = spec;
+    this.literals = literals;
+    this.variables = variables;
+  }
+
+  public static PropertyTemplate compile(String spec) {
+    List<String> literals = new ArrayList<String>();
+    List<String> variables = new ArrayList<String>();
+    int literalStart = 0;
+    int open = spec.indexOf('{');
+    while (open != -1) {
+      int close = endOfReference(spec, open);
+      if (close == -1) {
+        // not a reference; the curly is literal text
+        open = spec.indexOf('{', open + 1);
+      } else {
+        literals.add(spec.substring(literalStart, open));
+        variables.add(spec.substring(open + 1, close));
+        literalStart = close + 1;
+        open = spec.indexOf('{', literalStart);
+      }
+    }
+    literals.add(spec.substring(literalStart));
+    return new PropertyTemplate(
+        spec, literals.toArray(new String[0]), variables.toArray(new String[0]));
+  }
+
+  // returns the index of the closing curly, or -1 if there is no valid name
+  private static int endOfReference(String spec, int open) {
+    int i = open + 1;
+    for (; i < spec.length(); i++) {
+      char c = spec.charAt(i);
+      if (c == '}') {
+        return (i > open + 1) ? i : -1;
+      }
+      if (c == '{' || c == ' ' || c == '"') {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  public boolean isLiteral() {
+    return variables.length == 0;
+  }
+
+  public String getSpec() {
+    return spec;
+  }
+
+  // the name of the variable, if the spec is exactly one reference like
+  // {apikey}, with no literal text around it; else null
+  public String getSoleVariable() {
+    if (variables.length == 1 && literals[0].isEmpty() && literals[1].isEmpty()) {
+      return variables[0];
+    }
+    return null;
+  }
+
+  public String resolve(MessageContext msgCtxt) {
+    if (variables.length == 0) {
+      return spec;
+    }
+    StringBuilder sb = new StringBuilder(spec.length() + 32);
+    for (int i = 0; i < variables.length; i++) {
+      sb.append(literals[i]);
+      Object v = msgCtxt.getVariable(variables[i]);
+      if (v != null) {
+        if (v instanceof Object[]) {
+          Object[] a = (Object[]) v;
+          for (int j = 0; j < a.length; j++) {
+            if (j > 0) sb.append(',');
+            sb.append(a[j]);
+          }
+        } else {
+          sb.append(v.toString());
+        }
+      }
+    }
+    sb.append(literals[variables.length]);
+    return sb.toString();
+  }
+}
@@ -1,20 +1,10 @@
 package com.google.apigee.callout.jwtsigned;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.io.BaseEncoding;
 import com.nimbusds.jose.JOSEException;
-import com.nimbusds.jose.jwk.JWKSet;
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -26,12 +16,8 @@ import java.security.spec.RSAPublicKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.text.ParseException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 public class PublicKeySource {
-  private static final LoadingCache<String, String> jwksUriCache;
-
   enum SourceType {
     SourceString,
     SourceModExp,
@@ -48,24 +34,7 @@ public class PublicKeySource {
   public String kid;
   public String certificateString;
   public String pemFileName;
-
-  static {
-    jwksUriCache =
-        CacheBuilder.newBuilder()
-            .concurrencyLevel(4)
-            .maximumSize(128)
-            .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<String, String>() {
-                  public String load(String uri) throws MalformedURLException, IOException {
-                    URL url = new URL(uri);
-                    try (InputStream in = url.openStream()) {
-                      BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-                      return reader.lines().collect(Collectors.joining(System.lineSeparator()));
-                    }
-                  }
-                });
-  }
+  private KeyFingerprint fingerprint;
 
   private PublicKeySource() {}
 
@@ -113,6 +82,27 @@ public class PublicKeySource {
     return source;
   }
 
+  // identifies the key material, for use as a cache key
+  public KeyFingerprint getFingerprint() {
+    // computed once; a source built from static configuration is reused across requests
+    if (fingerprint == null) {
+      switch (sourceType) {
+        case SourceModExp:
+          fingerprint = KeyFingerprint.of(sourceType.name(), modulus, exponent);
+          break;
+        case SourceCert:
+          fingerprint = KeyFingerprint.of(sourceType.name(), certificateString);
+          break;
+        case SourceJwksUriAndKid:
+          fingerprint = KeyFingerprint.of(sourceType.name(), jwksuri, kid);
+          break;
+        default:
+          fingerprint = KeyFingerprint.of(sourceType.name(), publicKeyString);
+      }
+    }
+    return fingerprint;
+  }
+
   public PublicKey getPublicKey()
       throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeySpecException,
           CertificateException, UnsupportedEncodingException, ExecutionException, ParseException,
@@ -140,9 +130,8 @@ public class PublicKeySource {
   }
 
   private static PublicKey getKeyFromJwksAndKid(String uri, String kid)
-      throws ExecutionException, ParseException, JOSEException {
-    return (PublicKey)
-        JWKSet.parse(jwksUriCache.get(uri)).getKeyByKeyId(kid).toRSAKey().toRSAPublicKey();
+      throws ExecutionException {
+    return JwksCache.getDefault().getPublicKey(uri, kid);
   }
 
   private static PublicKey pemFileStringToPublicKey(String s)
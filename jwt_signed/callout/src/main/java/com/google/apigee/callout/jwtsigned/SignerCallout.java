@@ -1,27 +1,19 @@
 package com.google.apigee.callout.jwtsigned;
 
 import com.apigee.flow.message.MessageContext;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.nimbusds.jose.JOSEException;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.nimbusds.jose.JWSSigner;
-import com.nimbusds.jose.crypto.MACSigner;
-import com.nimbusds.jose.crypto.RSASSASigner;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.interfaces.RSAPrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang3.StringUtils;
 import org.bouncycastle.openssl.PEMDecryptorProvider;
 import org.bouncycastle.openssl.PEMEncryptedKeyPair;
@@ -32,56 +24,50 @@ import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.openssl.jcajce.JcePEMDecryptorProviderBuilder;
 
 public abstract class SignerCallout extends JoseCalloutBase {
-  protected LoadingCache<String, JWSSigner> macKeyCache;
-  protected LoadingCache<PrivateKeyInfo, JWSSigner> rsaKeyCache;
+
+  // the private key, when the configuration alone determines it; else null
+  private final PrivateKeyInfo staticPrivateKeyInfo;
 
   protected SignerCallout (String varPrefix, Map properties) {
     super(varPrefix, properties);
-    macKeyCache =
-      CacheBuilder.newBuilder()
-            .concurrencyLevel(4)
-            .maximumSize(1048000)
-            .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<String, JWSSigner>() {
-                  public JWSSigner load(String key) throws UnsupportedEncodingException, JOSEException {
-                    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-                    // NB: this will throw if the string is not at least 16 chars long
-                    return new MACSigner(keyBytes);
-                  }
-                });
-
-    rsaKeyCache =
-        CacheBuilder.newBuilder()
-            .concurrencyLevel(4)
-            .maximumSize(1048000)
-            .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<PrivateKeyInfo, JWSSigner>() {
-                  public JWSSigner load(PrivateKeyInfo info)
-                      throws InvalidKeySpecException, GeneralSecurityException, IOException {
-                    try {
-                      RSAPrivateKey privateKey = (RSAPrivateKey) generatePrivateKey(info);
-                      return new RSASSASigner(privateKey);
-                    } catch (java.lang.Exception exc1) {
-                      info.msgCtxt.setVariable(
-                          varName("getRsaKey_stacktrace"), getStackTraceAsString(exc1));
-                      throw exc1;
-                    }
-                  }
-                });
+    staticPrivateKeyInfo = getStaticPrivateKeyInfo();
+  }
 
+  // If the key properties are all literals, then the key bytes, including
+  // the contents of any pemfile, are the same for every request.
+  private PrivateKeyInfo getStaticPrivateKeyInfo() {
+    for (String name : new String[] {"private-key", "pemfile", "private-key-password"}) {
+      String value = (String) this.properties.get(name);
+      if (value != null && !PolicyConfig.isLiteral(value)) {
+        return null;
+      }
+    }
+    try {
+      return new PrivateKeyInfo(getPrivateKeyBytes(null), getPrivateKeyPassword(null));
+    } catch (Exception e) {
+      // not configured, or misconfigured; the request path reports it
+      return null;
     }
+  }
 
   protected JWSSigner getMacSigner(MessageContext msgCtxt) throws Exception {
     String key = getSecretKey(msgCtxt);
-    return macKeyCache.get(key);
+    return KeyRegistry.getDefault().getMacSigner(key);
   }
 
   protected JWSSigner getRsaSigner(MessageContext msgCtxt) throws IOException, ExecutionException {
     PrivateKeyInfo info =
-        new PrivateKeyInfo(msgCtxt, getPrivateKeyBytes(msgCtxt), getPrivateKeyPassword(msgCtxt));
-    return rsaKeyCache.get(info);
+        (staticPrivateKeyInfo != null)
+            ? staticPrivateKeyInfo
+            : new PrivateKeyInfo(getPrivateKeyBytes(msgCtxt), getPrivateKeyPassword(msgCtxt));
+    try {
+      return KeyRegistry.getDefault().getRsaSigner(info);
+    } catch (ExecutionException | UncheckedExecutionException exc1) {
+      if (diagnostics.wantsError()) {
+        diagnostics.error(msgCtxt, varName("getRsaKey_stacktrace"), exc1.getCause());
+      }
+      throw exc1;
+    }
   }
 
   protected String getKeyId(MessageContext msgCtxt) throws Exception {
@@ -147,7 +133,7 @@ public abstract class SignerCallout extends JoseCalloutBase {
     return keyBytes;
   }
 
-  private static PrivateKey generatePrivateKey(PrivateKeyInfo info)
+  static PrivateKey generatePrivateKey(PrivateKeyInfo info)
       throws InvalidKeySpecException, GeneralSecurityException, NoSuchAlgorithmException,
           IOException, PEMException {
     JcaPEMKeyConverter converter = new JcaPEMKeyConverter().setProvider("BC");
@@ -16,73 +16,43 @@
 package com.google.apigee.callout.jwtsigned;
 
 import com.apigee.flow.message.MessageContext;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.JWSVerifier;
-import com.nimbusds.jose.crypto.MACVerifier;
-import com.nimbusds.jose.crypto.RSASSAVerifier;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.security.interfaces.RSAPublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.text.ParseException;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang3.StringUtils;
 
 public abstract class VerifierCallout extends JoseCalloutBase {
-  protected LoadingCache<String, JWSVerifier> macVerifierCache;
-  protected LoadingCache<PublicKeySource, JWSVerifier> rsaVerifierCache;
-  private static final int MAX_CACHE_ENTRIES = 10240;
+
+  // the key source, when the configuration alone determines it; else null
+  private final PublicKeySource staticPublicKeySource;
 
   protected VerifierCallout(String varPrefix, Map properties) {
     super(varPrefix, properties);
+    staticPublicKeySource = getStaticPublicKeySource();
+  }
 
-    macVerifierCache =
-        CacheBuilder.newBuilder()
-            .concurrencyLevel(4)
-            .maximumSize(MAX_CACHE_ENTRIES)
-            .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<String, JWSVerifier>() {
-                  public JWSVerifier load(String key)
-                      throws UnsupportedEncodingException, IllegalArgumentException, JOSEException {
-                    if (key == null) {
-                      throw new IllegalArgumentException("the key is null");
-                    }
-                    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-                    // NB: this will throw if the string is not at least 16 chars long
-                    return new MACVerifier(keyBytes);
-                  }
-                });
-
-    rsaVerifierCache =
-        CacheBuilder.newBuilder()
-            .concurrencyLevel(4)
-            .maximumSize(MAX_CACHE_ENTRIES)
-            .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<PublicKeySource, JWSVerifier>() {
-                  public JWSVerifier load(PublicKeySource source)
-                      throws NoSuchAlgorithmException, InvalidKeySpecException,
-                          IllegalArgumentException, CertificateException,
-                          UnsupportedEncodingException, ExecutionException, ParseException,
-                          JOSEException {
-                    RSAPublicKey publicKey = (RSAPublicKey) source.getPublicKey();
-                    if (publicKey == null) {
-                      throw new IllegalArgumentException("there was no public key specified.");
-                    }
-                    return new RSASSAVerifier(publicKey);
-                  }
-                });
+  // If the key properties are all literals, then the key source, including
+  // the contents of any pemfile, is the same for every request.
+  private PublicKeySource getStaticPublicKeySource() {
+    String jwksUri = (String) this.properties.get("jwks-uri");
+    if (jwksUri != null && !jwksUri.trim().equals("")) {
+      // depends on the kid in each token
+      return null;
+    }
+    for (String name : new String[] {"public-key", "modulus", "exponent", "certificate", "pemfile"}) {
+      String value = (String) this.properties.get(name);
+      if (value != null && !PolicyConfig.isLiteral(value)) {
+        return null;
+      }
+    }
+    try {
+      return getPublicKeySource(null, null);
+    } catch (Exception e) {
+      // not configured, or misconfigured; the request path reports it
+      return null;
+    }
   }
 
   protected boolean getContinueOnError(MessageContext msgCtxt) {
@@ -182,12 +152,24 @@ public abstract class VerifierCallout extends JoseCalloutBase {
 
   private JWSVerifier getMacVerifier(MessageContext msgCtxt) throws Exception {
     String key = getSecretKey(msgCtxt);
-    return macVerifierCache.get(key);
+    return KeyRegistry.getDefault().getMacVerifier(key);
   }
 
   private JWSVerifier getRsaVerifier(JWSHeader jwsh, MessageContext msgCtxt) throws Exception {
-    PublicKeySource source = getPublicKeySource(jwsh, msgCtxt);
-    return rsaVerifierCache.get(source);
+    PublicKeySource source =
+        (staticPublicKeySource != null) ? staticPublicKeySource : getPublicKeySource(jwsh, msgCtxt);
+    if (source.sourceType == PublicKeySource.SourceType.SourceJwksUriAndKid) {
+      // the JWKS index already holds a verifier for each kid
+      if (source.kid == null) {
+        throw new IllegalArgumentException("the header has no kid; one is required with jwks-uri");
+      }
+      JWSVerifier verifier = JwksCache.getDefault().getVerifier(source.jwksuri, source.kid);
+      if (verifier == null) {
+        throw new IllegalArgumentException("no key with kid '" + source.kid + "' in the JWKS");
+      }
+      return verifier;
+    }
+    return KeyRegistry.getDefault().getRsaVerifier(source);
   }
 
   protected JWSVerifier getVerifier(String alg, JWSHeader jwsh, MessageContext msgCtxt)
@@ -0,0 +1,131 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSObject;
+import com.nimbusds.jose.Payload;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import com.nimbusds.jose.util.Base64URL;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestCompactToken {
+  private static final byte[] secret =
+      "ABCDEFGH12345678_ABCDEFGH12345678".getBytes(StandardCharsets.UTF_8);
+
+  @Test()
+  public void decodesLikeNimbus() throws Exception {
+    Random random = new Random(20200914);
+    for (int length = 0; length < 100; length++) {
+      byte[] data = new byte[length];
+      random.nextBytes(data);
+      String encoded = Base64URL.encode(data).toString();
+      byte[] decoded = CompactToken.decode(encoded, 0, encoded.length());
+      Assert.assertEquals(Base64URL.encode(decoded).toString(), encoded, "length " + length);
+    }
+  }
+
+  @Test()
+  public void rejectsInvalidBase64url() {
+    for (String bad : new String[] {"ab+c", "ab/c", "abc=", "a", "abcde", "ab c"}) {
+      try {
+        CompactToken.decode(bad, 0, bad.length());
+        Assert.fail("decoded " + bad);
+      } catch (ParseException expected) {
+      }
+    }
+  }
+
+  @Test()
+  public void rejectsWrongNumberOfParts() {
+    for (String bad : new String[] {"abc", "abc.def", "a.b.c.d", ".e30.sig"}) {
+      try {
+        CompactToken.parse(bad);
+        Assert.fail("parsed " + bad);
+      } catch (ParseException expected) {
+      }
+    }
+  }
+
+  @Test()
+  public void signingInputVerifies() throws Exception {
+    JWSObject jwsObject =
+        new JWSObject(new JWSHeader(JWSAlgorithm.HS256), new Payload("{\"sub\":\"test\"}"));
+    jwsObject.sign(new MACSigner(secret));
+    String compact = jwsObject.serialize();
+
+    CompactToken token = CompactToken.parse(compact);
+    Assert.assertEquals(
+        new String(token.getSigningInput(), StandardCharsets.US_ASCII),
+        compact.substring(0, compact.lastIndexOf('.')));
+    Assert.assertEquals(
+        new String(token.decodePayload(), StandardCharsets.UTF_8), "{\"sub\":\"test\"}");
+    JWSHeader header = JWSHeader.parse(CompactToken.parseJsonObject(token.decodeHeader()));
+    Assert.assertEquals(header.getAlgorithm(), JWSAlgorithm.HS256);
+    Assert.assertTrue(
+        new MACVerifier(secret).verify(header, token.getSigningInput(), token.getSignature()));
+  }
+
+  @Test()
+  public void signingInputRejectsNonAsciiCharacters() throws Exception {
+    JWSObject jwsObject =
+        new JWSObject(new JWSHeader(JWSAlgorithm.HS256), new Payload("{\"sub\":\"test\"}"));
+    jwsObject.sign(new MACSigner(secret));
+    String compact = jwsObject.serialize();
+    int dot1 = compact.indexOf('.');
+    // a character with the same low byte as the one it replaces, in the header and in the payload
+    for (int i : new int[] {0, dot1 + 1}) {
+      char c = (char) (compact.charAt(i) | 0x100);
+      CompactToken token =
+          CompactToken.parse(compact.substring(0, i) + c + compact.substring(i + 1));
+      try {
+        token.getSigningInput();
+        Assert.fail("signing input for a token with " + c);
+      } catch (ParseException expected) {
+        Assert.assertEquals(expected.getErrorOffset(), i);
+      }
+    }
+  }
+
+  @Test()
+  public void detachedSigningInputVerifies() throws Exception {
+    String content = "the detached content";
+    JWSObject jwsObject = new JWSObject(new JWSHeader(JWSAlgorithm.HS256), new Payload(content));
+    jwsObject.sign(new MACSigner(secret));
+    String detached = jwsObject.serialize(true);
+
+    CompactToken token = CompactToken.parse(detached);
+    Assert.assertTrue(token.isPayloadEmpty());
+    byte[] signingInput = token.getSigningInput(content.getBytes(StandardCharsets.UTF_8));
+    JWSHeader header = JWSHeader.parse(CompactToken.parseJsonObject(token.decodeHeader()));
+    Assert.assertTrue(new MACVerifier(secret).verify(header, signingInput, token.getSignature()));
+  }
+
+  @Test()
+  public void rejectsJsonThatIsNotAnObject() {
+    try {
+      CompactToken.parseJsonObject("[1,2]".getBytes(StandardCharsets.UTF_8));
+      Assert.fail("parsed an array");
+    } catch (ParseException expected) {
+    }
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestDiagnostics extends JoseTestBase {
+
+  public static class RecordingSink implements DiagnosticsSink {
+    static final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    public void error(MessageContext msgCtxt, String name, Throwable error) {
+      events.add("error " + name + " " + error.getClass().getName());
+    }
+
+    public void debug(MessageContext msgCtxt, String name, String value) {
+      events.add("debug " + name + " " + value);
+    }
+  }
+
+  @Test()
+  public void offByDefault() {
+    Map<String, String> properties = new HashMap<String, String>();
+    Diagnostics diagnostics = Diagnostics.from(properties, false);
+    Assert.assertSame(diagnostics, Diagnostics.OFF);
+    Assert.assertFalse(diagnostics.wantsError());
+    Assert.assertFalse(diagnostics.wantsDebug());
+  }
+
+  @Test()
+  public void debugPropertySetsTheDefaultLevel() {
+    Map<String, String> properties = new HashMap<String, String>();
+    Diagnostics diagnostics = Diagnostics.from(properties, true);
+    Assert.assertEquals(diagnostics.level, Diagnostics.Level.DEBUG);
+    Assert.assertTrue(diagnostics.wantsError());
+    Assert.assertTrue(diagnostics.wantsDebug());
+    Assert.assertSame(diagnostics.sink, Diagnostics.VariablesSink.INSTANCE);
+
+    properties.put("diagnostics-level", "off");
+    Assert.assertSame(Diagnostics.from(properties, true), Diagnostics.OFF);
+  }
+
+  @Test()
+  public void levelAndSampleRate() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("diagnostics-level", "error");
+    Diagnostics diagnostics = Diagnostics.from(properties, false);
+    Assert.assertTrue(diagnostics.wantsError());
+    Assert.assertFalse(diagnostics.wantsDebug());
+
+    properties.put("diagnostics-sample-rate", "0");
+    diagnostics = Diagnostics.from(properties, false);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertFalse(diagnostics.wantsError());
+    }
+
+    properties.put("diagnostics-level", "not-a-level");
+    properties.put("diagnostics-sample-rate", "not-a-number");
+    diagnostics = Diagnostics.from(properties, true);
+    Assert.assertEquals(diagnostics.level, Diagnostics.Level.DEBUG);
+    Assert.assertEquals(diagnostics.sampleRate, 1.0);
+  }
+
+  @Test()
+  public void sinkByClassName() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("diagnostics-sink", RecordingSink.class.getName());
+    Diagnostics diagnostics = Diagnostics.from(properties, true);
+    Assert.assertTrue(diagnostics.sink instanceof RecordingSink);
+    Assert.assertSame(Diagnostics.from(properties, true).sink, diagnostics.sink);
+
+    properties.put("diagnostics-sink", "com.example.NoSuchSink");
+    Assert.assertSame(
+        Diagnostics.from(properties, true).sink, Diagnostics.VariablesSink.INSTANCE);
+  }
+
+  private ExecutionResult createWithClaim(Map<String, String> properties) {
+    properties.put("algorithm", "HS256");
+    properties.put("secret-key", "ABCDEFGH12345678_ABCDEFGH12345678");
+    properties.put("subject", "urn:F5CF2B90-DDF3-47EB-82EB-F67A5B561FD2");
+    properties.put("claim_shape", "rhombus");
+    return new JwtCreatorCallout(properties).execute(msgCtxt, exeCtxt);
+  }
+
+  @Test()
+  public void debugValuesGoToVariablesByDefault() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("debug", "true");
+    Assert.assertEquals(createWithClaim(properties), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_provided_shape"), "rhombus");
+  }
+
+  @Test()
+  public void noDebugValuesWhenOff() {
+    Map<String, String> properties = new HashMap<String, String>();
+    Assert.assertEquals(createWithClaim(properties), ExecutionResult.SUCCESS);
+    Assert.assertNull(msgCtxt.getVariable("jwt_provided_shape"));
+  }
+
+  @Test()
+  public void debugValuesGoToTheConfiguredSink() {
+    RecordingSink.events.clear();
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("diagnostics-level", "debug");
+    properties.put("diagnostics-sink", RecordingSink.class.getName());
+    Assert.assertEquals(createWithClaim(properties), ExecutionResult.SUCCESS);
+    Assert.assertNull(msgCtxt.getVariable("jwt_provided_shape"));
+    Assert.assertTrue(RecordingSink.events.contains("debug jwt_provided_shape rhombus"));
+  }
+}
@@ -0,0 +1,428 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestJwksCache {
+  private static String jwks1;
+  private static String jwks2;
+
+  private HttpServer server;
+  private String uri;
+  private volatile int statusCode;
+  private volatile String body;
+  private volatile String etag;
+  private volatile String lastModified;
+  private volatile String cacheControl;
+  private volatile String lastIfModifiedSince;
+  private volatile long delayMillis;
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final AtomicInteger notModifiedCount = new AtomicInteger();
+
+  static class FakeTicker extends Ticker {
+    private final AtomicLong nanos = new AtomicLong();
+
+    public long read() {
+      return nanos.get();
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos.addAndGet(unit.toNanos(duration));
+    }
+  }
+
+  private static String jwksWithRsaKey(String kid) throws NoSuchAlgorithmException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    RSAPublicKey publicKey = (RSAPublicKey) generator.generateKeyPair().getPublic();
+    // an oct key and a key without a kid, both of which the index ignores
+    return "{\"keys\":["
+        + new RSAKey.Builder(publicKey).keyID(kid).build().toJSONString()
+        + ",{\"kty\":\"oct\",\"kid\":\"secret\",\"k\":\"AAAA\"}"
+        + ","
+        + new RSAKey.Builder(publicKey).build().toJSONString()
+        + "]}";
+  }
+
+  @BeforeClass()
+  public void generateKeys() throws NoSuchAlgorithmException {
+    jwks1 = jwksWithRsaKey("one");
+    jwks2 = jwksWithRsaKey("two");
+  }
+
+  @BeforeMethod()
+  public void startServer() throws IOException {
+    statusCode = 200;
+    body = jwks1;
+    etag = null;
+    lastModified = null;
+    cacheControl = null;
+    lastIfModifiedSince = null;
+    delayMillis = 0;
+    requestCount.set(0);
+    notModifiedCount.set(0);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/jwks",
+        exchange -> {
+          requestCount.incrementAndGet();
+          if (delayMillis > 0) {
+            try {
+              Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          lastIfModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+          if (cacheControl != null) {
+            exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+          }
+          if (lastModified != null) {
+            exchange.getResponseHeaders().set("Last-Modified", lastModified);
+          }
+          if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+              notModifiedCount.incrementAndGet();
+              exchange.sendResponseHeaders(304, -1);
+              exchange.close();
+              return;
+            }
+          }
+          byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(statusCode, bytes.length);
+          try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+          }
+        });
+    server.start();
+    uri = "http://127.0.0.1:" + server.getAddress().getPort() + "/jwks";
+  }
+
+  @AfterMethod()
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test()
+  public void warmEntryIsServedWithoutFetch() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    JwksKeySet keySet = cache.get(uri);
+    Assert.assertTrue(keySet.containsKey("one"));
+    ticker.advance(JwksCache.REFRESH_INTERVAL_MINUTES - 1, TimeUnit.MINUTES);
+    Assert.assertSame(cache.get(uri), keySet);
+    Assert.assertEquals(requestCount.get(), 1);
+  }
+
+  @Test()
+  public void refreshPicksUpNewKeys() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    Assert.assertTrue(cache.get(uri).containsKey("one"));
+    body = jwks2;
+    ticker.advance(JwksCache.REFRESH_INTERVAL_MINUTES + 1, TimeUnit.MINUTES);
+    cache.get(uri); // triggers the reload
+    JwksKeySet keySet = cache.get(uri);
+    Assert.assertTrue(keySet.containsKey("two"));
+    Assert.assertFalse(keySet.containsKey("one"));
+    Assert.assertEquals(requestCount.get(), 2);
+  }
+
+  @Test()
+  public void failedRefreshKeepsLastGoodKeys() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    JwksKeySet keySet = cache.get(uri);
+    statusCode = 500;
+    body = "oops";
+    ticker.advance(JwksCache.REFRESH_INTERVAL_MINUTES + 1, TimeUnit.MINUTES);
+    Assert.assertSame(cache.get(uri), keySet);
+    Assert.assertSame(cache.get(uri), keySet);
+    Assert.assertTrue(requestCount.get() >= 2, "refresh attempted");
+  }
+
+  @Test()
+  public void unparseableRefreshKeepsLastGoodKeys() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    JwksKeySet keySet = cache.get(uri);
+    body = "{\"keys\":";
+    ticker.advance(JwksCache.REFRESH_INTERVAL_MINUTES + 1, TimeUnit.MINUTES);
+    Assert.assertSame(cache.get(uri), keySet);
+  }
+
+  @Test()
+  public void indexHoldsOnlyRsaKeysWithKid() throws Exception {
+    JwksKeySet keySet = JwksKeySet.parse(jwks1);
+    Assert.assertEquals(keySet.size(), 1);
+    Assert.assertNotNull(keySet.getPublicKey("one"));
+    Assert.assertNotNull(keySet.getVerifier("one"));
+    Assert.assertNull(keySet.getVerifier("secret"));
+    Assert.assertNull(keySet.getVerifier(null));
+  }
+
+  @Test()
+  public void unknownKidIsNegativelyCached() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    Assert.assertNull(cache.getVerifier(uri, "forged"));
+    Assert.assertEquals(requestCount.get(), 2); // initial load plus one forced re-fetch
+    ticker.advance(JwksCache.MIN_REFETCH_INTERVAL_SECONDS + 1, TimeUnit.SECONDS);
+    Assert.assertNull(cache.getVerifier(uri, "forged"));
+    Assert.assertEquals(requestCount.get(), 2);
+    ticker.advance(JwksCache.UNKNOWN_KID_TTL_SECONDS, TimeUnit.SECONDS);
+    Assert.assertNull(cache.getVerifier(uri, "forged"));
+    Assert.assertEquals(requestCount.get(), 3);
+  }
+
+  @Test()
+  public void forcedRefetchIsRateLimited() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    for (int i = 0; i < 50; i++) {
+      Assert.assertNull(cache.getVerifier(uri, "random-" + i));
+    }
+    Assert.assertEquals(requestCount.get(), 2);
+  }
+
+  @Test()
+  public void unknownKidDiscoversRotatedKey() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    Assert.assertNotNull(cache.getVerifier(uri, "one"));
+    body = jwks2;
+    Assert.assertNotNull(cache.getVerifier(uri, "two"));
+    Assert.assertNotNull(cache.getPublicKey(uri, "two"));
+    Assert.assertEquals(requestCount.get(), 2);
+  }
+
+  @Test()
+  public void concurrentLookupsShareOneFetch() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    final JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    cache.get(uri);
+    body = jwks2;
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<JWSVerifier>> results = new ArrayList<Future<JWSVerifier>>();
+      for (int i = 0; i < 32; i++) {
+        results.add(pool.submit(() -> cache.getVerifier(uri, "two")));
+      }
+      for (Future<JWSVerifier> result : results) {
+        Assert.assertNotNull(result.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+    Assert.assertEquals(requestCount.get(), 2);
+  }
+
+  @Test()
+  public void missingKidIsNotFetched() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    Assert.assertNull(cache.getVerifier(uri, null));
+    Assert.assertEquals(requestCount.get(), 1);
+  }
+
+  @Test()
+  public void notModifiedKeepsParsedKeys() throws Exception {
+    etag = "\"v1\"";
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    JwksKeySet keySet = cache.get(uri);
+    ticker.advance(JwksCache.REFRESH_INTERVAL_MINUTES + 1, TimeUnit.MINUTES);
+    cache.get(uri); // triggers the conditional reload
+    Assert.assertSame(cache.get(uri), keySet);
+    Assert.assertEquals(requestCount.get(), 2);
+    Assert.assertEquals(notModifiedCount.get(), 1);
+
+    // the 304 extends the life of the entry
+    ticker.advance(JwksCache.REFRESH_INTERVAL_MINUTES - 1, TimeUnit.MINUTES);
+    cache.get(uri);
+    Assert.assertEquals(requestCount.get(), 2);
+  }
+
+  @Test()
+  public void changedEtagReplacesKeys() throws Exception {
+    etag = "\"v1\"";
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    Assert.assertTrue(cache.get(uri).containsKey("one"));
+    etag = "\"v2\"";
+    body = jwks2;
+    ticker.advance(JwksCache.REFRESH_INTERVAL_MINUTES + 1, TimeUnit.MINUTES);
+    cache.get(uri);
+    Assert.assertTrue(cache.get(uri).containsKey("two"));
+    Assert.assertEquals(notModifiedCount.get(), 0);
+  }
+
+  @Test()
+  public void lastModifiedIsSentBack() throws Exception {
+    lastModified = "Wed, 21 Oct 2015 07:28:00 GMT";
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    cache.get(uri);
+    Assert.assertNull(lastIfModifiedSince);
+    ticker.advance(JwksCache.REFRESH_INTERVAL_MINUTES + 1, TimeUnit.MINUTES);
+    cache.get(uri);
+    Assert.assertEquals(lastIfModifiedSince, lastModified);
+  }
+
+  @Test()
+  public void maxAgeSetsRefreshInterval() throws Exception {
+    cacheControl = "public, max-age=3600";
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache = new JwksCache(ticker, MoreExecutors.directExecutor());
+    cache.get(uri);
+    ticker.advance(59, TimeUnit.MINUTES);
+    cache.get(uri);
+    Assert.assertEquals(requestCount.get(), 1);
+    ticker.advance(2, TimeUnit.MINUTES);
+    cache.get(uri);
+    Assert.assertEquals(requestCount.get(), 2);
+  }
+
+  @Test()
+  public void refreshIntervalFromCacheControl() {
+    Assert.assertEquals(
+        JwksCache.refreshIntervalNanos(null),
+        TimeUnit.MINUTES.toNanos(JwksCache.REFRESH_INTERVAL_MINUTES));
+    Assert.assertEquals(
+        JwksCache.refreshIntervalNanos("max-age=600, must-revalidate"),
+        TimeUnit.SECONDS.toNanos(600));
+    Assert.assertEquals(
+        JwksCache.refreshIntervalNanos("max-age=0"),
+        TimeUnit.SECONDS.toNanos(JwksCache.MIN_REFRESH_INTERVAL_SECONDS));
+    Assert.assertEquals(
+        JwksCache.refreshIntervalNanos("no-cache"),
+        TimeUnit.SECONDS.toNanos(JwksCache.MIN_REFRESH_INTERVAL_SECONDS));
+    Assert.assertEquals(
+        JwksCache.refreshIntervalNanos("max-age=99999999999999999999"),
+        TimeUnit.HOURS.toNanos(JwksCache.MAX_REFRESH_INTERVAL_HOURS));
+    Assert.assertEquals(
+        JwksCache.refreshIntervalNanos("private"),
+        TimeUnit.MINUTES.toNanos(JwksCache.REFRESH_INTERVAL_MINUTES));
+  }
+
+  @Test()
+  public void clientReturnsBodyBytes() throws Exception {
+    JwksClient.Response response = new JwksClient().get(uri, null, null);
+    Assert.assertEquals(response.status, 200);
+    Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), jwks1);
+    Assert.assertTrue(JwksKeySet.parse(response.body).containsKey("one"));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void clientRejectsOversizedResponse() throws Exception {
+    new JwksClient(1000, 1000, 64).get(uri, null, null);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void clientTakesLimitsFromProperties() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("jwks-max-bytes", "64");
+    JwksClient.fromProperties(properties).get(uri, null, null);
+  }
+
+  @Test()
+  public void clientKeepsDefaultForInvalidLimits() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("jwks-connect-timeout", "-1");
+    properties.setProperty("jwks-read-timeout", "soon");
+    properties.setProperty("jwks-max-bytes", "0");
+    JwksClient.Response response = JwksClient.fromProperties(properties).get(uri, null, null);
+    Assert.assertEquals(response.status, 200);
+  }
+
+  @Test(expectedExceptions = SocketTimeoutException.class)
+  public void clientReadTimeoutFromProperties() throws Exception {
+    delayMillis = 2000;
+    Properties properties = new Properties();
+    properties.setProperty("jwks-read-timeout", "200");
+    JwksClient.fromProperties(properties).get(uri, null, null);
+  }
+
+  @Test(expectedExceptions = SocketTimeoutException.class)
+  public void clientTimesOutOnSlowServer() throws Exception {
+    delayMillis = 2000;
+    new JwksClient(1000, 200, 65536).get(uri, null, null);
+  }
+
+  @Test()
+  public void clientReportsErrorStatus() throws Exception {
+    statusCode = 503;
+    JwksClient.Response response = new JwksClient().get(uri, null, null);
+    Assert.assertEquals(response.status, 503);
+    Assert.assertNull(response.body);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void clientRequiresHttp() throws Exception {
+    new JwksClient().get("file:///etc/hosts", null, null);
+  }
+
+  @Test()
+  public void timedOutRefreshKeepsLastGoodKeys() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    JwksCache cache =
+        new JwksCache(ticker, MoreExecutors.directExecutor(), new JwksClient(1000, 200, 65536));
+    JwksKeySet keySet = cache.get(uri);
+    delayMillis = 2000;
+    ticker.advance(JwksCache.REFRESH_INTERVAL_MINUTES + 1, TimeUnit.MINUTES);
+    Assert.assertSame(cache.get(uri), keySet);
+  }
+
+  @Test()
+  public void parseFromBytesMatchesParseFromString() throws Exception {
+    JwksKeySet fromBytes = JwksKeySet.parse(jwks1.getBytes(StandardCharsets.UTF_8));
+    JwksKeySet fromString = JwksKeySet.parse(jwks1);
+    Assert.assertEquals(fromBytes.getPublicKey("one"), fromString.getPublicKey("one"));
+  }
+
+  @Test(expectedExceptions = java.text.ParseException.class)
+  public void parseFromBytesRejectsNonObject() throws Exception {
+    JwksKeySet.parse("[1,2]".getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -44,6 +44,26 @@ public class TestJwsVerification extends JoseTestBase {
     Assert.assertEquals(isValid, "true");
   }
 
+  @Test()
+  public void nonAsciiPayloadCharacter() {
+    String jws =
+        "eyJhbGciOiJIUzI1NiJ9.Rm91ciBzY29yZSBhbmQgc2V2ZW4geWVhcnMgYWdvIG91ciBmYXRoZXJzIGJyb3VnaHQgZm9ydGggb24gdGhpcyBjb250aW5lbnQsIGEgbmV3IG5hdGlvbiwgY29uY2VpdmVkIGluIExpYmVydHksIGFuZCBkZWRpY2F0ZWQgdG8gdGhlIHByb3Bvc2l0aW9uIHRoYXQgYWxsIG1lbiBhcmUgY3JlYXRlZCBlcXVhbC4KCk5vdyB3ZSBhcmUgZW5nYWdlZCBpbiBhIGdyZWF0IGNpdmlsIHdhciwgdGVzdGluZyB3aGV0aGVyIHRoYXQgbmF0aW9uLCBvciBhbnkgbmF0aW9uIHNvIGNvbmNlaXZlZCBhbmQgc28gZGVkaWNhdGVkLCBjYW4gbG9uZyBlbmR1cmUuIFdlIGFyZSBtZXQgb24gYSBncmVhdCBiYXR0bGUtZmllbGQgb2YgdGhhdCB3YXIuIFdlIGhhdmUgY29tZSB0byBkZWRpY2F0ZSBhIHBvcnRpb24gb2YgdGhhdCBmaWVsZCwgYXMgYSBmaW5hbCByZXN0aW5nIHBsYWNlIGZvciB0aG9zZSB3aG8gaGVyZSBnYXZlIHRoZWlyIGxpdmVzIHRoYXQgdGhhdCBuYXRpb24gbWlnaHQgbGl2ZS4gSXQgaXMgYWx0b2dldGhlciBmaXR0aW5nIGFuZCBwcm9wZXIgdGhhdCB3ZSBzaG91bGQgZG8gdGhpcy4.0epAvpgPQjHrsAlvMgD_rwsxOGzjGIK7uOxvLI7RaNI";
+    // U+0152 has the low byte of the 'R' it replaces
+    int i = jws.indexOf('.') + 1;
+    Assert.assertEquals(jws.charAt(i), 'R');
+    Map properties = new HashMap();
+    properties.put("jws", jws.substring(0, i) + '\u0152' + jws.substring(i + 1));
+    properties.put("algorithm", "HS256");
+    properties.put("secret-key", "ABCDEFGH12345678_ABCDEFGH12345678");
+
+    JwsVerifierCallout callout = new JwsVerifierCallout(properties);
+    ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("jws_isValid"), "false");
+    Assert.assertEquals(msgCtxt.getVariable("jws_reason"), "the JWS did not parse.");
+  }
+
   @Test()
   public void detached() {
     Map properties = new HashMap();
@@ -0,0 +1,97 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestKeyRegistry extends JoseTestBase {
+
+  @Test()
+  public void sameKeyMaterialSharesVerifier() throws Exception {
+    KeyRegistry registry = new KeyRegistry(KeyRegistry.MAX_WEIGHT_BYTES);
+    String pem = publicKeyMap.get("rsa-public-1");
+    // distinct source objects, as two policies would create
+    Assert.assertSame(
+        registry.getRsaVerifier(PublicKeySource.fromString(pem)),
+        registry.getRsaVerifier(PublicKeySource.fromString(new String(pem))));
+    Assert.assertNotSame(
+        registry.getRsaVerifier(PublicKeySource.fromString(pem)),
+        registry.getRsaVerifier(PublicKeySource.fromString(publicKeyMap.get("rsa-public-2"))));
+  }
+
+  @Test()
+  public void sameKeyMaterialSharesSigner() throws Exception {
+    KeyRegistry registry = new KeyRegistry(KeyRegistry.MAX_WEIGHT_BYTES);
+    byte[] keyBytes = privateKeyMap.get("rsa-private-2").getBytes(StandardCharsets.UTF_8);
+    Assert.assertSame(
+        registry.getRsaSigner(new PrivateKeyInfo(keyBytes, "Secret123")),
+        registry.getRsaSigner(new PrivateKeyInfo(keyBytes.clone(), "Secret123")));
+    Assert.assertSame(
+        registry.getMacSigner("ABCDEFGH12345678_ABCDEFGH12345678"),
+        registry.getMacSigner("ABCDEFGH12345678_ABCDEFGH12345678"));
+  }
+
+  @Test()
+  public void signersAndVerifiersAreDistinct() throws Exception {
+    KeyRegistry registry = new KeyRegistry(KeyRegistry.MAX_WEIGHT_BYTES);
+    Object signer = registry.getMacSigner("ABCDEFGH12345678_ABCDEFGH12345678");
+    Object verifier = registry.getMacVerifier("ABCDEFGH12345678_ABCDEFGH12345678");
+    Assert.assertNotSame(signer, verifier);
+  }
+
+  @Test()
+  public void registryIsBoundedByWeight() throws Exception {
+    KeyRegistry registry = new KeyRegistry(8192);
+    for (int i = 0; i < 200; i++) {
+      registry.getMacVerifier("ABCDEFGH12345678_ABCDEFGH12345678-" + i);
+    }
+    Assert.assertTrue(registry.size() < 40, "size: " + registry.size());
+  }
+
+  @Test()
+  public void fingerprintsCompareByContent() {
+    Assert.assertEquals(KeyFingerprint.of("a", "bc"), KeyFingerprint.of("a", new String("bc")));
+    Assert.assertEquals(
+        KeyFingerprint.of("a", "bc").hashCode(), KeyFingerprint.of("a", "bc").hashCode());
+    Assert.assertNotEquals(KeyFingerprint.of("ab", "c"), KeyFingerprint.of("a", "bc"));
+    Assert.assertNotEquals(KeyFingerprint.of("a", null), KeyFingerprint.of("a", ""));
+  }
+
+  @Test()
+  public void privateKeyPasswordIsPartOfFingerprint() {
+    byte[] keyBytes = privateKeyMap.get("rsa-private-2").getBytes(StandardCharsets.UTF_8);
+    Assert.assertEquals(
+        new PrivateKeyInfo(keyBytes, "Secret123").getFingerprint(),
+        new PrivateKeyInfo(keyBytes.clone(), "Secret123").getFingerprint());
+    Assert.assertNotEquals(
+        new PrivateKeyInfo(keyBytes, "Secret123").getFingerprint(),
+        new PrivateKeyInfo(keyBytes, "wrong").getFingerprint());
+    Assert.assertNotEquals(
+        new PrivateKeyInfo(keyBytes, null).getFingerprint(),
+        new PrivateKeyInfo(keyBytes, "").getFingerprint());
+  }
+
+  @Test(expectedExceptions = ExecutionException.class)
+  public void wrongPasswordDoesNotHitCachedSigner() throws Exception {
+    KeyRegistry registry = new KeyRegistry(KeyRegistry.MAX_WEIGHT_BYTES);
+    byte[] keyBytes = privateKeyMap.get("rsa-private-2").getBytes(StandardCharsets.UTF_8);
+    registry.getRsaSigner(new PrivateKeyInfo(keyBytes, "Secret123"));
+    registry.getRsaSigner(new PrivateKeyInfo(keyBytes, "wrong"));
+  }
+}
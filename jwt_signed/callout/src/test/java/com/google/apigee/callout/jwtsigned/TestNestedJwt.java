@@ -0,0 +1,152 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.nimbusds.jose.JWEEncrypter;
+import com.nimbusds.jose.JWSVerifier;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestNestedJwt extends JoseTestBase {
+  private static final String SUBJECT = "urn:75E70AF6-B468-4BCE-B096-88F13D6DB03F";
+  private static final String SECRET_KEY = "ABCDEFGH12345678_ABCDEFGH12345678";
+
+  private String createNestedJwt(Map<String, String> extraProperties) {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("algorithm", "HS256");
+    properties.put("secret-key", SECRET_KEY);
+    properties.put("subject", SUBJECT);
+    properties.put("claim_shape", "rhombus");
+    properties.put("encryption-public-key", publicKeyMap.get("rsa-public-2"));
+    properties.putAll(extraProperties);
+    NestedJwtCreatorCallout callout = new NestedJwtCreatorCallout(properties);
+    ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    String jwt = msgCtxt.getVariable("jwt_jwt");
+    Assert.assertNotNull(jwt);
+    return jwt;
+  }
+
+  private ExecutionResult verifyNestedJwt(String jwt, Map<String, String> extraProperties) {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("algorithm", "HS256");
+    properties.put("secret-key", SECRET_KEY);
+    properties.put("jwt", jwt);
+    properties.put("claim_shape", "rhombus");
+    properties.put("decryption-private-key", privateKeyMap.get("rsa-private-2"));
+    properties.put("decryption-private-key-password", "Secret123");
+    properties.put("continueOnError", "true");
+    properties.putAll(extraProperties);
+    NestedJwtVerifierCallout callout = new NestedJwtVerifierCallout(properties);
+    return callout.execute(msgCtxt, exeCtxt);
+  }
+
+  @Test
+  public void signThenEncryptThenVerify() {
+    String jwt = createNestedJwt(new HashMap<String, String>());
+    // a compact JWE has five parts
+    Assert.assertEquals(jwt.split("\\.", -1).length, 5, "parts");
+
+    ExecutionResult result = verifyNestedJwt(jwt, new HashMap<String, String>());
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_reason"), null, "reason");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "true", "isValid");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_subject"), SUBJECT, "subject");
+    String jweHeader = msgCtxt.getVariable("jwt_jweheader");
+    Assert.assertTrue(jweHeader.contains("\"RSA-OAEP-256\""), jweHeader);
+    Assert.assertTrue(jweHeader.contains("\"A256GCM\""), jweHeader);
+    // the verified token is the signed JWT inside
+    String innerJwt = msgCtxt.getVariable("jwt_jwt");
+    Assert.assertEquals(innerJwt.split("\\.", -1).length, 3, "inner parts");
+  }
+
+  @Test
+  public void otherAlgorithms() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("key-encryption", "RSA-OAEP");
+    properties.put("content-encryption", "A128CBC-HS256");
+    properties.put("encryption-kid", "recipient-1");
+    String jwt = createNestedJwt(properties);
+
+    ExecutionResult result = verifyNestedJwt(jwt, properties);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "true", "isValid");
+    String jweHeader = msgCtxt.getVariable("jwt_jweheader");
+    Assert.assertTrue(jweHeader.contains("\"recipient-1\""), jweHeader);
+  }
+
+  @Test
+  public void algorithmMismatch() {
+    String jwt = createNestedJwt(new HashMap<String, String>());
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("content-encryption", "A128GCM");
+    verifyNestedJwt(jwt, properties);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "false", "isValid");
+    String reason = msgCtxt.getVariable("jwt_reason");
+    Assert.assertTrue(reason.startsWith("Encryption algorithm mismatch"), reason);
+  }
+
+  @Test
+  public void wrongDecryptionKey() {
+    String jwt = createNestedJwt(new HashMap<String, String>());
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("decryption-private-key", privateKeyMap.get("rsa-private-3"));
+    properties.put("decryption-private-key-password", "");
+    verifyNestedJwt(jwt, properties);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "false", "isValid");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_reason"), "the JWE could not be decrypted.");
+  }
+
+  @Test
+  public void signedJwtIsNotNested() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("algorithm", "HS256");
+    properties.put("secret-key", SECRET_KEY);
+    properties.put("subject", SUBJECT);
+    Assert.assertEquals(
+        new JwtCreatorCallout(properties).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    String jwt = msgCtxt.getVariable("jwt_jwt");
+
+    verifyNestedJwt(jwt, new HashMap<String, String>());
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "false", "isValid");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_reason"), "the JWE did not parse.");
+  }
+
+  @Test
+  public void unsupportedKeyEncryption() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("algorithm", "HS256");
+    properties.put("secret-key", SECRET_KEY);
+    properties.put("encryption-public-key", publicKeyMap.get("rsa-public-2"));
+    properties.put("key-encryption", "RSA1_5");
+    ExecutionResult result = new NestedJwtCreatorCallout(properties).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    String exception = msgCtxt.getVariable("jwt_exception");
+    Assert.assertTrue(exception.contains("unsupported key-encryption: 'RSA1_5'"), exception);
+  }
+
+  @Test
+  public void encrypterAndVerifierForTheSameKey() throws Exception {
+    PublicKeySource source = PublicKeySource.fromString(publicKeyMap.get("rsa-public-2"));
+    JWEEncrypter encrypter = KeyRegistry.getDefault().getRsaEncrypter(source);
+    JWSVerifier verifier = KeyRegistry.getDefault().getRsaVerifier(source);
+    Assert.assertNotNull(verifier);
+    Assert.assertSame(KeyRegistry.getDefault().getRsaEncrypter(source), encrypter);
+  }
+}
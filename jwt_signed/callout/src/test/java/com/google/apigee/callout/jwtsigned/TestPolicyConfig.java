@@ -0,0 +1,97 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestPolicyConfig {
+
+  @Test()
+  public void literalAlgorithmIsValidatedOnce() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("algorithm", " RS256 ");
+    PolicyConfig config = PolicyConfig.from(properties);
+    Assert.assertEquals(config.algorithm, "RS256");
+    Assert.assertNull(config.algorithmError);
+
+    properties.put("algorithm", "ES256");
+    config = PolicyConfig.from(properties);
+    Assert.assertNull(config.algorithm);
+    Assert.assertEquals(config.algorithmError, "unsupported algorithm: 'ES256'");
+
+    properties.put("algorithm", "");
+    config = PolicyConfig.from(properties);
+    Assert.assertEquals(config.algorithmError, "algorithm is not specified or is empty.");
+  }
+
+  @Test()
+  public void dynamicValuesAreLeftForTheRequest() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("algorithm", "{my_alg}");
+    properties.put("timeAllowance", "{my_allowance}");
+    PolicyConfig config = PolicyConfig.from(properties);
+    Assert.assertNull(config.algorithm);
+    Assert.assertNull(config.algorithmError);
+    Assert.assertNull(config.timeAllowance);
+  }
+
+  @Test()
+  public void timeAllowanceIsParsed() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("timeAllowance", "30000");
+    Assert.assertEquals(PolicyConfig.from(properties).timeAllowance, Long.valueOf(30000L));
+    properties.put("timeAllowance", "not-a-number");
+    Assert.assertNull(PolicyConfig.from(properties).timeAllowance);
+  }
+
+  @Test()
+  public void claimPropertiesKeepTheirOrder() {
+    Map<String, String> properties = new LinkedHashMap<String, String>();
+    properties.put("claim_sub", "{apikey}");
+    properties.put("algorithm", "HS256");
+    properties.put("claim_aud", "urn://example.com");
+    properties.put("debug", "true");
+    properties.put("claim_json_extra", "{\"a\":1}");
+    PolicyConfig config = PolicyConfig.from(properties);
+    Assert.assertEquals(config.claims.size(), 3);
+    Assert.assertEquals(config.claims.get(0).property, "claim_sub");
+    Assert.assertEquals(config.claims.get(1).property, "claim_aud");
+    Assert.assertEquals(config.claims.get(2).property, "claim_json_extra");
+    Assert.assertEquals(config.claims.get(0).spec, "{apikey}");
+  }
+
+  @Test()
+  public void claimRulesAreParsedOnce() {
+    Map<String, String> properties = new LinkedHashMap<String, String>();
+    properties.put("claim_sub", "{apikey}");
+    properties.put("claim_aud", "urn://example.com");
+    properties.put("claim_json_extra", "{\"a\":1}");
+    properties.put("claim_tag", "ABC-{apikey}");
+    PolicyConfig config = PolicyConfig.from(properties);
+    Assert.assertEquals(config.claims.get(0).name, "sub");
+    Assert.assertFalse(config.claims.get(0).isLiteral());
+    Assert.assertEquals(config.claims.get(1).name, "aud");
+    Assert.assertTrue(config.claims.get(1).isLiteral());
+    // JSON braces are not a variable reference
+    Assert.assertEquals(config.claims.get(2).name, "json_extra");
+    Assert.assertTrue(config.claims.get(2).isLiteral());
+    Assert.assertFalse(config.claims.get(3).isLiteral());
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2018-2020 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callout.jwtsigned;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class TestPropertyTemplate extends JoseTestBase {
+
+  // the regex-based resolution that PropertyTemplate replaced
+  private static final Pattern variableReferencePattern =
+      Pattern.compile("(.*?)\\{([^\\{\\} \"]+?)\\}(.*?)");
+
+  private String resolveWithRegex(String spec) {
+    Matcher matcher = variableReferencePattern.matcher(spec);
+    StringBuffer sb = new StringBuffer();
+    while (matcher.find()) {
+      matcher.appendReplacement(sb, "");
+      sb.append(matcher.group(1));
+      Object v = msgCtxt.getVariable(matcher.group(2));
+      if (v != null) {
+        sb.append(v.toString());
+      }
+      sb.append(matcher.group(3));
+    }
+    matcher.appendTail(sb);
+    return sb.toString();
+  }
+
+  @DataProvider(name = "specs")
+  public static Object[][] specs() {
+    return new Object[][] {
+      {"plain literal"},
+      {""},
+      {"{apiproxy.name}"},
+      {"ABC-{apikey}"},
+      {"{apikey}-XYZ"},
+      {"{apiproxy.name}:{apikey}/{apikey}"},
+      {"{missing.variable}"},
+      {"{}"},
+      {"{not a variable}"},
+      {"{\"json\": true}"},
+      {"{{apikey}}"},
+      {"{apikey"},
+      {"apikey}"},
+      {"{a{apikey}"},
+      {"line one\n{apikey}\nline three"},
+      {"{\"sub\":\"{apikey}\"}"},
+    };
+  }
+
+  @Test(dataProvider = "specs")
+  public void matchesRegexResolution(String spec) {
+    msgCtxt.setVariable("apiproxy.name", "jwt-proxy");
+    msgCtxt.setVariable("apikey", "Ahp7Aeg9");
+    Assert.assertEquals(PropertyTemplate.compile(spec).resolve(msgCtxt), resolveWithRegex(spec));
+  }
+
+  @Test()
+  public void literalResolvesToItself() {
+    String spec = "no references here";
+    PropertyTemplate template = PropertyTemplate.compile(spec);
+    Assert.assertTrue(template.isLiteral());
+    Assert.assertSame(template.resolve(msgCtxt), spec);
+    Assert.assertFalse(PropertyTemplate.compile("{x}").isLiteral());
+    Assert.assertTrue(PropertyTemplate.compile("{not a variable}").isLiteral());
+  }
+
+  @Test()
+  public void arrayValuesAreJoined() {
+    msgCtxt.setVariable("audiences", new String[] {"a", "b", "c"});
+    Assert.assertEquals(PropertyTemplate.compile("aud:{audiences}").resolve(msgCtxt), "aud:a,b,c");
+  }
+}
@@ -137,6 +137,231 @@ public class TestVerificationExtended {
     Assert.assertNotNull(claims);
   }
 
+  private String createHs256Jwt(String secret) {
+    Map<String, String> createProps = new HashMap<String, String>();
+    createProps.put("algorithm", "HS256");
+    createProps.put("secret-key", secret);
+    createProps.put("issuer", "http://dinochiesa.net");
+    createProps.put("subject", java.util.UUID.randomUUID().toString());
+    createProps.put("expiresIn", "1800");
+    createProps.put("claim_motto", "Iloveapis");
+    ExecutionResult result = new JwtCreatorCallout(createProps).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    return msgCtxt.getVariable("jwt_jwt");
+  }
+
+  private ExecutionResult verifyWithCache(String jwt, String secret, String motto) {
+    testSetup1(); // fresh context for each verification
+    Map<String, String> verifyProps = new HashMap<String, String>();
+    verifyProps.put("algorithm", "HS256");
+    verifyProps.put("secret-key", secret);
+    verifyProps.put("jwt", jwt);
+    verifyProps.put("claim_motto", motto);
+    verifyProps.put("cache-verified-tokens", "true");
+    return new JwtVerifierCallout(verifyProps).execute(msgCtxt, exeCtxt);
+  }
+
+  @Test
+  public void testVerifiedTokenIsCached() {
+    String secret = "ABCDEFGH12345678_ABCDEFGH12345678";
+    String jwt = createHs256Jwt(secret);
+
+    Assert.assertEquals(verifyWithCache(jwt, secret, "Iloveapis"), ExecutionResult.SUCCESS);
+    Assert.assertNull(msgCtxt.getVariable("jwt_verificationCached"));
+
+    Assert.assertEquals(verifyWithCache(jwt, secret, "Iloveapis"), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_verificationCached"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_verified"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_issuer"), "http://dinochiesa.net");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_claim_motto"), "Iloveapis");
+    Assert.assertNotNull(msgCtxt.getVariable("jwt_secondsRemaining"));
+  }
+
+  @Test
+  public void testCachedTokenIsNotTrustedWithOtherKey() {
+    String secret = "ABCDEFGH12345678_ABCDEFGH12345678";
+    String jwt = createHs256Jwt(secret);
+    Assert.assertEquals(verifyWithCache(jwt, secret, "Iloveapis"), ExecutionResult.SUCCESS);
+
+    ExecutionResult result = verifyWithCache(jwt, "ZYXWVUTS87654321_ZYXWVUTS87654321", "Iloveapis");
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertNull(msgCtxt.getVariable("jwt_verificationCached"));
+    Assert.assertEquals(msgCtxt.getVariable("jwt_verified"), "false");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "false");
+  }
+
+  @Test
+  public void testCachedTokenClaimsAreStillChecked() {
+    String secret = "ABCDEFGH12345678_ABCDEFGH12345678";
+    String jwt = createHs256Jwt(secret);
+    Assert.assertEquals(verifyWithCache(jwt, secret, "Iloveapis"), ExecutionResult.SUCCESS);
+
+    Assert.assertEquals(verifyWithCache(jwt, secret, "something else"), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_verificationCached"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "false");
+  }
+
+  private ExecutionResult verifyHs256(String jwt, String secret) {
+    testSetup1();
+    Map<String, String> verifyProps = new HashMap<String, String>();
+    verifyProps.put("algorithm", "HS256");
+    verifyProps.put("secret-key", secret);
+    verifyProps.put("jwt", jwt);
+    return new JwtVerifierCallout(verifyProps).execute(msgCtxt, exeCtxt);
+  }
+
+  @Test
+  public void testClaimsAreNotDecodedWhenSignatureFails() {
+    String secret = "ABCDEFGH12345678_ABCDEFGH12345678";
+    String jwt = createHs256Jwt(secret);
+    Assert.assertEquals(
+        verifyHs256(jwt, "ZYXWVUTS87654321_ZYXWVUTS87654321"), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_verified"), "false");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_reason"), "the signature could not be verified");
+    Assert.assertNotNull(msgCtxt.getVariable("jwt_jwtheader"));
+    Assert.assertNull(msgCtxt.getVariable("jwt_claims"));
+    Assert.assertNull(msgCtxt.getVariable("jwt_issuer"));
+  }
+
+  @Test
+  public void testWrongAlgorithmIsRejectedBeforePayload() {
+    // {"alg":"RS256"} followed by a payload that is not JSON
+    String jwt = "eyJhbGciOiJSUzI1NiJ9.bm90IGpzb24.c2lnbmF0dXJl";
+    Assert.assertEquals(
+        verifyHs256(jwt, "ABCDEFGH12345678_ABCDEFGH12345678"), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("jwt_reason"), "Algorithm mismatch. provided=RS256, required=HS256");
+    Assert.assertNull(msgCtxt.getVariable("jwt_claims"));
+  }
+
+  @Test
+  public void testOversizeTokenIsRejected() {
+    StringBuilder sb = new StringBuilder("eyJhbGciOiJIUzI1NiJ9.");
+    while (sb.length() <= 16 * 1024) {
+      sb.append("QUFBQUFBQUFBQUFBQUFBQQ");
+    }
+    sb.append(".c2lnbmF0dXJl");
+    Assert.assertEquals(
+        verifyHs256(sb.toString(), "ABCDEFGH12345678_ABCDEFGH12345678"), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_reason"), "the JWT exceeds the maximum length.");
+    Assert.assertNull(msgCtxt.getVariable("jwt_jwtheader"));
+  }
+
+  @Test
+  public void testWrongNumberOfPartsDoesNotParse() {
+    Assert.assertEquals(
+        verifyHs256("eyJhbGciOiJIUzI1NiJ9.e30", "ABCDEFGH12345678_ABCDEFGH12345678"),
+        ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_reason"), "the JWT did not parse.");
+  }
+
+  private ExecutionResult verifyWithOutputs(String jwt, String secret, String outputs) {
+    testSetup1();
+    Map<String, String> verifyProps = new HashMap<String, String>();
+    verifyProps.put("algorithm", "HS256");
+    verifyProps.put("secret-key", secret);
+    verifyProps.put("jwt", jwt);
+    verifyProps.put("claim_motto", "Iloveapis");
+    verifyProps.put("output-variables", outputs);
+    return new JwtVerifierCallout(verifyProps).execute(msgCtxt, exeCtxt);
+  }
+
+  @Test
+  public void testMinimalOutputVariables() {
+    String secret = "ABCDEFGH12345678_ABCDEFGH12345678";
+    String jwt = createHs256Jwt(secret);
+    Assert.assertEquals(verifyWithOutputs(jwt, secret, "minimal"), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "true");
+    Assert.assertNull(msgCtxt.getVariable("jwt_verified"));
+    Assert.assertNull(msgCtxt.getVariable("jwt_claims"));
+    Assert.assertNull(msgCtxt.getVariable("jwt_expirationTimeFormatted"));
+    Assert.assertNull(msgCtxt.getVariable("jwt_claim_motto"));
+
+    ExecutionResult result =
+        verifyWithOutputs(jwt, "ZYXWVUTS87654321_ZYXWVUTS87654321", "minimal");
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "false");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_reason"), "the signature could not be verified");
+  }
+
+  @Test
+  public void testListedOutputVariables() {
+    String secret = "ABCDEFGH12345678_ABCDEFGH12345678";
+    String jwt = createHs256Jwt(secret);
+    Assert.assertEquals(
+        verifyWithOutputs(jwt, secret, "minimal, issuer, claim_*"), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "true");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_issuer"), "http://dinochiesa.net");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_claim_motto"), "Iloveapis");
+    Assert.assertEquals(msgCtxt.getVariable("jwt_claim_motto_expected"), "Iloveapis");
+    Assert.assertNull(msgCtxt.getVariable("jwt_subject"));
+    Assert.assertNull(msgCtxt.getVariable("jwt_nowFormatted"));
+  }
+
+  private ExecutionResult verifyBatch(Object jwts, String secret, boolean parallel) {
+    testSetup1();
+    msgCtxt.setVariable("request.jwts", jwts);
+    Map<String, String> verifyProps = new HashMap<String, String>();
+    verifyProps.put("algorithm", "HS256");
+    verifyProps.put("secret-key", secret);
+    verifyProps.put("jwts", "{request.jwts}");
+    verifyProps.put("claim_motto", "Iloveapis");
+    verifyProps.put("parallel-verify", Boolean.toString(parallel));
+    return new JwtVerifierCallout(verifyProps).execute(msgCtxt, exeCtxt);
+  }
+
+  @Test
+  public void testBatchVerification() {
+    String secret = "ABCDEFGH12345678_ABCDEFGH12345678";
+    String[] jwts = new String[] {createHs256Jwt(secret), createHs256Jwt(secret), null};
+    jwts[2] = "Bearer " + createHs256Jwt(secret);
+    for (boolean parallel : new boolean[] {false, true}) {
+      Assert.assertEquals(verifyBatch(jwts, secret, parallel), ExecutionResult.SUCCESS);
+      Assert.assertEquals(msgCtxt.getVariable("jwt_count"), "3");
+      Assert.assertEquals(msgCtxt.getVariable("jwt_validCount"), "3");
+      Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "true");
+      for (int i = 1; i <= 3; i++) {
+        Assert.assertEquals(msgCtxt.getVariable("jwt_" + i + "_isValid"), "true");
+        Assert.assertEquals(msgCtxt.getVariable("jwt_" + i + "_verified"), "true");
+        Assert.assertEquals(msgCtxt.getVariable("jwt_" + i + "_claim_motto"), "Iloveapis");
+      }
+      Assert.assertNull(msgCtxt.getVariable("jwt_verified"));
+    }
+  }
+
+  @Test
+  public void testBatchReportsEachToken() {
+    String secret = "ABCDEFGH12345678_ABCDEFGH12345678";
+    String good = createHs256Jwt(secret);
+    String otherKey = createHs256Jwt("ZYXWVUTS87654321_ZYXWVUTS87654321");
+    String jwts = good + "," + otherKey + ",not-a-jwt";
+    for (boolean parallel : new boolean[] {false, true}) {
+      Assert.assertEquals(verifyBatch(jwts, secret, parallel), ExecutionResult.ABORT);
+      Assert.assertEquals(msgCtxt.getVariable("jwt_count"), "3");
+      Assert.assertEquals(msgCtxt.getVariable("jwt_validCount"), "1");
+      Assert.assertEquals(msgCtxt.getVariable("jwt_isValid"), "false");
+      Assert.assertEquals(msgCtxt.getVariable("jwt_1_isValid"), "true");
+      Assert.assertEquals(msgCtxt.getVariable("jwt_2_isValid"), "false");
+      Assert.assertEquals(
+          msgCtxt.getVariable("jwt_2_reason"), "the signature could not be verified");
+      Assert.assertEquals(msgCtxt.getVariable("jwt_3_isValid"), "false");
+      Assert.assertEquals(msgCtxt.getVariable("jwt_3_reason"), "the JWT did not parse.");
+    }
+  }
+
+  @Test
+  public void testBatchTooLarge() {
+    String secret = "ABCDEFGH12345678_ABCDEFGH12345678";
+    String jwt = createHs256Jwt(secret);
+    java.util.List<String> jwts = new ArrayList<String>();
+    for (int i = 0; i < 17; i++) {
+      jwts.add(jwt);
+    }
+    Assert.assertEquals(verifyBatch(jwts, secret, false), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("jwt_error"), "jwts holds more than 16 tokens.");
+  }
+
   @Test(dataProvider = "batch1")
   public void test2_Configs(TestCase tc) {
     JwtVerifierCallout callout = new JwtVerifierCallout(tc.getInputProperties());